@@ -0,0 +1,90 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// just enough of Server for the benchmarks: a chat.db in a temp folder and
+// logged in sessions whose output goes nowhere. outbound queues drain on the
+// calling thread, so a benchmark op covers the whole send down to the ClientIO
+final class BenchServer {
+
+    static final String HOST_PASSWORD = "bench";
+
+    private static Path dir;
+
+    private BenchServer() {}
+
+    static synchronized void start(int hashIterations) throws Exception {
+        // input : PBKDF2 iterations for registered users, keep it low unless hashing is what's measured
+        if (dir != null) return;
+        dir = Files.createTempDirectory("e2ec-bench");
+        String db = dir.resolve("chat.db").toString();
+
+        Server.HOST_PASSWORD = HOST_PASSWORD;
+        Server.CHAT_NAME = "bench";
+        Server.OUTBOUND_QUEUE_SIZE = 1024;
+        Server.OUTBOUND_OVERFLOW = OutboundQueue.OverflowPolicy.COALESCE;
+        Server.sessionExecutor = new DirectExecutor();
+        Server.dbWriter = new DbWriter(db, "fast", 0);
+        Server.readPool = new ReadPool(db, 2);
+        Server.hashPool = Server.createHashPool(2, 1024);
+        Server.userManager = new UserManager(Server.readPool, Server.dbWriter, new UserCache(1024, 300),
+                new Pbkdf2Hasher(hashIterations), Server.hashPool);
+    }
+
+    static synchronized void stop() throws IOException {
+        // the db threads are daemons, only the files need cleaning up
+        if (dir == null) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+        dir = null;
+    }
+
+    static List<ClientSession> loggedIn(String prefix, int count) {
+        // registers count users and logs each in through the real handshake
+        // input : username prefix, number of sessions
+        // output: sessions in chat state, permission level 0
+        List<ClientSession> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ClientSession s = Server.newSession(new NullClientIO());
+            s.open();
+            s.onLine(HOST_PASSWORD);
+            s.onLine("register");
+            s.onLine(prefix + i);
+            s.onLine("pw");
+            if (s.getUsername() == null) throw new IllegalStateException("could not register " + prefix + i);
+            sessions.add(s);
+        }
+        return sessions;
+    }
+
+    static final class NullClientIO implements ClientIO {
+        // counts what would have been written, so nothing gets optimised away
+        long bytes;
+
+        @Override public void useFrames() { }
+        @Override public void writeLine(String line) { bytes += line.length() + 1; }
+        @Override public void writeRaw(ByteBuffer payload) { bytes += payload.remaining(); }
+        @Override public void flush() { }
+        @Override public void close() { }
+    }
+
+    static final class DirectExecutor extends AbstractExecutorService {
+        // runs the outbound writer right away on the sender's thread
+        @Override public void execute(Runnable task) { task.run(); }
+        @Override public void shutdown() { }
+        @Override public List<Runnable> shutdownNow() { return List.of(); }
+        @Override public boolean isShutdown() { return false; }
+        @Override public boolean isTerminated() { return false; }
+        @Override public boolean awaitTermination(long timeout, TimeUnit unit) { return false; }
+    }
+}
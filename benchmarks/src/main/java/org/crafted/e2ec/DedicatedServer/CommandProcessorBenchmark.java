@@ -0,0 +1,50 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// one command line through CommandProcessor.handle, parsing plus whatever the
+// command answers (queued onto a ClientIO that drops it)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class CommandProcessorBenchmark {
+
+    @Param({"/nosuchcommand", "/msg user1 hi there", "/online user", "/join"})
+    String command;
+
+    private CommandProcessor commands;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchServer.start(1000);
+        List<ClientSession> sessions = BenchServer.loggedIn("user", 20);
+        commands = new CommandProcessor(sessions.get(0), new ServerFacadeImpl());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchServer.stop();
+    }
+
+    @Benchmark
+    public void handle() {
+        commands.handle(command);
+    }
+}
@@ -0,0 +1,59 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// hashes per second on one core, i.e. how many logins one hash.threads thread handles
+// pick hash.iterations so this stays well above the logins/sec you expect per thread
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@State(Scope.Benchmark)
+public class PasswordHasherBenchmark {
+
+    @Param({"210000", "600000"})
+    int iterations;
+
+    private Pbkdf2Hasher pbkdf2;
+    private LegacySha256Hasher legacy;
+    private String pbkdf2Stored;
+    private String legacyStored;
+
+    @Setup
+    public void setup() {
+        pbkdf2 = new Pbkdf2Hasher(iterations);
+        legacy = new LegacySha256Hasher();
+        pbkdf2Stored = pbkdf2.hash("hunter2");
+        legacyStored = legacy.hash("hunter2");
+    }
+
+    @Benchmark
+    public String pbkdf2Hash() {
+        return pbkdf2.hash("hunter2");
+    }
+
+    @Benchmark
+    public boolean pbkdf2Verify() {
+        return pbkdf2.verify("hunter2", pbkdf2Stored);
+    }
+
+    @Benchmark
+    public boolean legacySha256Verify() {
+        // for comparison, iterations doesn't apply
+        return legacy.verify("hunter2", legacyStored);
+    }
+}
@@ -0,0 +1,60 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PermissionManager.canPerform, asked on every permission-gated command
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class PermissionManagerBenchmark {
+
+    private String owner = "admin";
+    private String user = "someone";
+    private String action = "command.createroom";
+
+    @Setup
+    public void setup() {
+        // the levels permissions.properties ships with, without reading the file
+        PermissionManager.ownerUsername = owner;
+        for (int level : new int[] {0, 1, 100}) {
+            PermissionManager.PermissionLevel pl = new PermissionManager.PermissionLevel();
+            pl.name = "level" + level;
+            pl.actions.put("command.createroom", level >= 100);
+            pl.actions.put("command.dbstats", level >= 100);
+            PermissionManager.levels.put(level, pl);
+        }
+    }
+
+    @Benchmark
+    public boolean owner() {
+        return PermissionManager.canPerform(owner, 0, action);
+    }
+
+    @Benchmark
+    public boolean allowed() {
+        return PermissionManager.canPerform(user, 100, action);
+    }
+
+    @Benchmark
+    public boolean denied() {
+        return PermissionManager.canPerform(user, 0, action);
+    }
+
+    @Benchmark
+    public boolean unknownLevel() {
+        return PermissionManager.canPerform(user, 42, action);
+    }
+}
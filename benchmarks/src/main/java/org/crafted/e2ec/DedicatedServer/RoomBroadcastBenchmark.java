@@ -0,0 +1,61 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// one chat line to every member of a room, Room.broadcast vs the broadcastall
+// path (Server.broadcastRoomMessage, walks the permission buckets of all clients)
+// both go all the way through each member's OutboundQueue onto a ClientIO that drops it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class RoomBroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int members;
+
+    private Room room;
+    private Room broadcastAll;
+    private List<ClientSession> sessions;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchServer.start(1000);
+        sessions = BenchServer.loggedIn("user", members);
+        room = new Room("bench", Set.of(0), Set.of(0), false, false, false);
+        broadcastAll = new Room("everyone", Set.of(0), Set.of(0), false, true, false);
+        for (ClientSession s : sessions) room.addMember(s);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchServer.stop();
+    }
+
+    @Benchmark
+    public void roomBroadcast() {
+        room.broadcast("<Member>user0: hello there, how is everyone doing today?");
+    }
+
+    @Benchmark
+    public void broadcastRoomMessage() {
+        Server.broadcastRoomMessage(broadcastAll, "<Member>user0: hello there, how is everyone doing today?");
+    }
+}
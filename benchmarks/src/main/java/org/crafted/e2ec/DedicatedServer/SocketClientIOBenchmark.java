@@ -0,0 +1,87 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// lines per second through SocketClientIO onto a loopback socket, a burst of
+// BURST lines then one flush, like an OutboundQueue drain. the other end reads
+// and throws everything away on its own thread
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class SocketClientIOBenchmark {
+
+    static final int BURST = 64;
+
+    @Param({"64", "1024"})
+    int lineBytes;
+
+    private ServerSocket listener;
+    private Socket peer;
+    private SocketClientIO io;
+    private ByteBuffer encoded;
+    private String line;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        peer = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        io = new SocketClientIO(listener.accept());
+
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream in = peer.getInputStream()) {
+                while (in.read(buf) >= 0) { }
+            } catch (Exception ignored) {}
+        }, "bench-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        line = "x".repeat(lineBytes - 1);
+        encoded = ClientIO.encodeLine(line);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        io.close();
+        peer.close();
+        listener.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void writeRaw() {
+        // pre-encoded, shared between recipients like a broadcast
+        for (int i = 0; i < BURST; i++) io.writeRaw(encoded);
+        io.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void writeLine() {
+        // encoded per call, like a line sent to just this client
+        for (int i = 0; i < BURST; i++) io.writeLine(line);
+        io.flush();
+    }
+}
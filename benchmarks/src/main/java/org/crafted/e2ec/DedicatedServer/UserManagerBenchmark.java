@@ -0,0 +1,65 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// UserManager.login against a chat.db in a temp folder: row lookup on the read
+// pool plus the hash check on the hash pool. iterations 1000 shows what's left
+// besides hashing, for the hash itself see PasswordHasherBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@State(Scope.Benchmark)
+public class UserManagerBenchmark {
+
+    @Param({"1000", "210000"})
+    int iterations;
+
+    private UserManager users;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchServer.start(iterations);
+        users = Server.userManager;
+        if (!users.register("alice", "hunter2", 0).join()) throw new IllegalStateException("register failed");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchServer.stop();
+    }
+
+    @Benchmark
+    public UserManager.User login() {
+        return users.login("alice", "hunter2").join();
+    }
+
+    @Benchmark
+    public UserManager.User loginWrongPassword() {
+        return users.login("alice", "hunter3").join();
+    }
+
+    @Benchmark
+    public UserManager.User loginUnknownUser() {
+        return users.login("nobody", "hunter2").join();
+    }
+
+    @Benchmark
+    public UserManager.User getUserCached() {
+        return users.getUser("alice");
+    }
+}
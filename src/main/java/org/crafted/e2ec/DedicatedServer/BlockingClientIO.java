@@ -0,0 +1,10 @@
+package org.crafted.e2ec.DedicatedServer;
+
+public interface BlockingClientIO extends ClientIO {
+    // a ClientIO whose session has a thread of its own to read with (see ClientSession.start)
+    // the nio transport pushes lines to the session instead, so it has no readLine
+
+    // a line of text, or after useFrames() the text of the next INPUT frame
+    // null at end of stream
+    String readLine() throws Exception;
+}
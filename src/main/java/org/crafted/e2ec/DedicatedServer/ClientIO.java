@@ -1,7 +1,40 @@
 package org.crafted.e2ec.DedicatedServer;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
 public interface ClientIO {
-    String readLine() throws Exception;
+    // the writing side of a connection, reading is up to the transport
+    // (BlockingClientIO.readLine, or NioServer pushing lines into the session)
+
+    // the client has switched to binary frames (see Protocol.Frame)
+    void useFrames();
+    // writes may sit in a buffer until flush()
     void writeLine(String line);
+    // payload is an already encoded line or frame (see Outgoing), shared between
+    // recipients, so implementations must only read from a duplicate of it
+    void writeRaw(ByteBuffer payload);
+    void flush();
     void close();
+    // false while the transport already holds as much unwritten data as it wants,
+    // the writer then leaves messages in its OutboundQueue (where the overflow
+    // policy applies) until the transport calls back through whenWritable
+    default boolean canWrite() { return true; }
+    // runs callback once, as soon as canWrite() is true again (possibly right away)
+    default void whenWritable(Runnable callback) { callback.run(); }
+    // where the session picks up results that finish on another thread (login, register)
+    // null means the session has its own thread and can just wait for them
+    default Executor callbackExecutor() { return null; }
+
+    static ByteBuffer encodeLine(String line) {
+        // encodes a line the way it goes on the wire, UTF-8 plus '\n'
+        // input : line of text
+        // output: read-only buffer safe to hand to many ClientIOs
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = '\n';
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
 }
@@ -1,17 +1,57 @@
 package org.crafted.e2ec.DedicatedServer;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.crafted.e2ec.Protocol.Frame;
+
 public class ClientSession implements RoomMember {
 
+    private static final Metrics.Histogram HANDSHAKE = Server.metrics.histogram("handshake.us");
+    private static final Metrics.Histogram FANOUT = Server.metrics.histogram("chat.fanout.us");
+    private static final Metrics.Counter CHAT_MESSAGES = Server.metrics.counter("chat.messages");
+    // "<id> " in front of a STORED frame's line, for the longest id there is
+    private static final int MAX_ID_BYTES = String.valueOf(Long.MAX_VALUE).length() + 1;
+
     private final ClientIO io;
     private final UserManager userManager;
     private final ServerFacade server;
     private final CommandProcessor commands;
+    private final OutboundQueue outbound;
     private final String hostPassword;
 
+    // where the client is in the handshake
+    // HOST_PASSWORD -> AUTH_CHOICE -> LOGIN_* / REGISTER_* / RESUME_TOKEN -> (AUTH_PENDING) -> CHAT
+    private enum State {
+        HOST_PASSWORD, AUTH_CHOICE,
+        LOGIN_USERNAME, LOGIN_PASSWORD,
+        REGISTER_USERNAME, REGISTER_PASSWORD,
+        RESUME_TOKEN,
+        AUTH_PENDING, CHAT, CLOSED
+    }
+
+    private volatile State state = State.HOST_PASSWORD;
+    private final AtomicBoolean closed = new AtomicBoolean(false); // also the lock for filing/unfiling us
+    private String pendingUsername;
+    private boolean compressing = false; // only touched by the thread handling this client's input
+    private volatile boolean wantsResumeToken = false; // asked with /resume, sent again whenever the room changes
+    private String resumeRoom; // room from the resume token, rejoined on /resume
+    private volatile long lastHeard = System.nanoTime(); // when the client last sent anything
+    private volatile TimerWheel.Timeout heartbeat;
+    private volatile boolean answersPings = false; // sent /pong at least once, see Heartbeats
+    private long openedAt; // when the first prompt went out, for the handshake time
+    private final JfrEvents.SessionClosed lifetime = new JfrEvents.SessionClosed(); // spans open() to disconnect()
+    private final ArrayDeque<String> heldLines = new ArrayDeque<>(); // sent while AUTH_PENDING
+
     private String username;
     private int permissionLevel;
     private Room currentRoom;
     ClientSession lastWhisperFrom;
+    long replayAfter; // set by /since, used up by the next /join
 
     public ClientSession(
             ClientIO io,
@@ -24,108 +64,275 @@ public class ClientSession implements RoomMember {
         this.userManager = userManager;
         this.server = server;
         this.commands = new CommandProcessor(this, server);
+        this.outbound = new OutboundQueue(io, Server.OUTBOUND_QUEUE_SIZE, Server.OUTBOUND_OVERFLOW,
+                Server.sessionExecutor, this::disconnect);
     }
 
-    public void start() throws Exception {
-        // main session logic
-        if (!checkHostPassword()) return;
-        if (!authenticate()) return;
+    public void start(BlockingClientIO in) throws Exception {
+        // main session logic for the blocking transport
+        // reads lines off the socket and feeds them into the state machine
+        // input: the same io this session was made with, its reading side
+        open();
 
-        io.writeLine("OK: Logged inj" + Server.CHAT_NAME);
-        server.broadcast(username + " joined the chat.", this);
+        try {
+            String line;
+            while (state != State.CLOSED && (line = in.readLine()) != null) {
+                onLine(line);
+            }
+        } catch (Exception e) {
+            // most likely a disconnect
+            if (state != State.CLOSED) {
+                System.out.println("Client " + username + " disconnected unexpectedly: " + e.getMessage());
+            }
+        } finally {
+            disconnect();
+        }
+    }
 
-        messageLoop();
+    void open() {
+        // first prompt of the handshake, the client answers with the host password
+        openedAt = System.nanoTime();
+        lifetime.begin();
+        JfrEvents.SessionOpened opened = new JfrEvents.SessionOpened();
+        if (opened.shouldCommit()) {
+            opened.transport = io.callbackExecutor() == null ? "blocking" : "nio";
+            opened.commit();
+        }
+        send("Enter host password to connect:");
+        state = State.HOST_PASSWORD;
+        scheduleHeartbeat(0);
     }
 
-    private boolean checkHostPassword() throws Exception {
-        // check host password
-        // input: none
-        // output: true if correct, false if incorrect
-        io.writeLine("Enter host password to connect:");
-        String entered = io.readLine();
+    private void scheduleHeartbeat(long delayMs) {
+        Heartbeats hb = Server.heartbeats;
+        if (hb == null || !hb.enabled()) return;
+        heartbeat = hb.schedule(delayMs, this::checkHeartbeat);
+    }
 
-        if (!hostPassword.equals(entered)) {
-            io.writeLine("incorrect host password. Disconnecting.");
-            return false;
+    private void checkHeartbeat() {
+        // runs off the shared timer wheel, never on the session's own thread
+        // quiet too long: dropped. quiet for a while, logged in and answering
+        // pings: PING, the client's /pong (or anything else it sends) counts as hearing from it
+        if (state == State.CLOSED) return;
+        Heartbeats hb = Server.heartbeats;
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+        boolean pings = answersPings;
+
+        if (hb.shouldReap(idle, pings)) {
+            hb.reaped();
+            System.out.println("Client " + username + " reaped after " + idle / 1000 + "s without a word.");
+            disconnect();
+            return;
         }
-        return true;
+        if (pings && state == State.CHAT && hb.shouldPing(idle)) {
+            send(Outgoing.of(Frame.PING, Frame.PING_TEXT, ""));
+            hb.pinged();
+        }
+        scheduleHeartbeat(hb.nextCheck(idle, pings));
     }
 
-    private boolean authenticate() throws Exception {
-        // authentication process
-        // input: none
-        // output: true if successful, false if failed
-        io.writeLine("Welcome! Type 'login' or 'register':");
+    void answersPings() {
+        // the client sent /pong, so it understands PING: from now on it gets
+        // pinged and held to the (short) idle timeout
+        answersPings = true;
+    }
 
-        while (true) {
-            String choice = io.readLine();
-            if (choice == null) return false;
+    void onLine(String line) {
+        // feeds one line from the client into the session state machine
+        // the blocking transport calls this from start(), the nio one from a worker
+        // input: line read from the client
+        // output: none
+        lastHeard = System.nanoTime();
+        try {
+            switch (state) {
+                case HOST_PASSWORD -> checkHostPassword(line);
+                case AUTH_CHOICE -> chooseAuth(line);
+                case LOGIN_USERNAME -> {
+                    pendingUsername = line;
+                    send("Enter password:");
+                    state = State.LOGIN_PASSWORD;
+                }
+                case LOGIN_PASSWORD -> login(line);
+                case REGISTER_USERNAME -> {
+                    pendingUsername = line;
+                    send("Enter new password:");
+                    state = State.REGISTER_PASSWORD;
+                }
+                case REGISTER_PASSWORD -> register(line);
+                case RESUME_TOKEN -> resume(line);
+                case AUTH_PENDING -> heldLines.add(line);
+                case CHAT -> handleMessage(line);
+                case CLOSED -> { }
+            }
+        } catch (Exception e) {
+            System.out.println("Client " + username + " disconnected unexpectedly: " + e.getMessage());
+            disconnect();
+        }
+    }
 
-            if (choice.equalsIgnoreCase("login") && login()) return true;
-            if (choice.equalsIgnoreCase("register") && register()) return true;
+    private void checkHostPassword(String entered) {
+        // check host password
+        // input: line the client sent
+        // output: none (moves on to auth, or disconnects)
+        if (!hostPassword.equals(entered)) {
+            send("incorrect host password. Disconnecting.");
+            disconnect();
+            return;
+        }
+        send("Welcome! Type 'login' or 'register':");
+        state = State.AUTH_CHOICE;
+    }
 
-            io.writeLine("Invalid option.");
+    private void chooseAuth(String choice) {
+        // login or register?
+        // input: line the client sent
+        // output: none (moves to the matching prompt)
+        if (choice.equalsIgnoreCase("login")) {
+            send("Enter username:");
+            state = State.LOGIN_USERNAME;
+        } else if (choice.equalsIgnoreCase("register")) {
+            send("Enter new username:");
+            state = State.REGISTER_USERNAME;
+        } else if (choice.equalsIgnoreCase("resume")) {
+            send("Enter resume token:");
+            state = State.RESUME_TOKEN;
+        } else {
+            send("Invalid option.");
         }
     }
 
-    private boolean login() throws Exception {
+    private void login(String p) {
         // login process
-        // input: none
-        // output: true if successful, false if failed
-        io.writeLine("Enter username:");
-        String u = io.readLine();
-        io.writeLine("Enter password:");
-        String p = io.readLine();
-
-        UserManager.User user = userManager.login(u, p);
+        // input: password line (username was stored by the previous state)
+        // output: none
+        whenDone(userManager.login(pendingUsername, p), user -> {
+            if (user == null) {
+                send("Login failed.");
+                send("Invalid option.");
+                state = State.AUTH_CHOICE;
+                return;
+            }
+
+            username = user.username;
+            permissionLevel = user.permissionLevel;
+            loggedIn();
+        });
+    }
+
+    private void register(String p) {
+        // registration process
+        // input: password line (username was stored by the previous state)
+        // output: none
+        whenDone(userManager.register(pendingUsername, p, 0), ok -> {
+            if (!ok) {
+                send("Registration failed.");
+                send("Invalid option.");
+                state = State.AUTH_CHOICE;
+                return;
+            }
+
+            username = pendingUsername;
+            permissionLevel = 0;
+            loggedIn();
+        });
+    }
+
+    private void resume(String token) {
+        // logs back in with a token from /resume instead of the password
+        // the token is only checked against the server key, no password hash to
+        // run, so a server restart with every client reconnecting stays cheap.
+        // the permission level is read fresh, the token only names the user
+        // input: token line
+        // output: none
+        ResumeTokens.Claims claims = server.verifyResumeToken(token.trim());
+        UserManager.User user = claims == null ? null : server.getUser(claims.username());
         if (user == null) {
-            io.writeLine("Login failed.");
-            return false;
+            send("Resume failed. Type 'login' or 'register':");
+            state = State.AUTH_CHOICE;
+            return;
         }
 
         username = user.username;
         permissionLevel = user.permissionLevel;
-        return true;
+        resumeRoom = claims.room();
+        loggedIn();
+        System.out.println("Client " + username + " resumed their session.");
     }
 
-    private boolean register() throws Exception {
-        // registration process
-        // input: none
-        // output: true if successful, false if failed
-        io.writeLine("Enter new username:");
-        String u = io.readLine();
-        io.writeLine("Enter new password:");
-        String p = io.readLine();
-
-        if (!userManager.register(u, p, 0)) {
-            io.writeLine("Registration failed.");
-            return false;
+    void enableResumeToken() {
+        // /resume: client wants a token now and a fresh one whenever its room changes
+        // a resumed client sends it once it's done with /binary etc., which is
+        // when it goes back into its room, so the join and replay arrive in the
+        // format it reads from then on
+        String token = server.issueResumeToken(username, currentRoom);
+        if (token == null) {
+            send("Resuming is disabled.");
+            return;
         }
+        wantsResumeToken = true;
 
-        username = u;
-        permissionLevel = 0;
-        return true;
+        String room = resumeRoom;
+        resumeRoom = null;
+        if (room != null && server.getRoom(room) != null) {
+            commands.handle("/join " + room); // same checks and replay as /join, sends the new token
+        } else {
+            send(Outgoing.of(Frame.RESUME, "Resume token: " + token, token));
+        }
     }
 
-    private void messageLoop() {
-        // main loop to read messages from client
-        try {
-            String msg;
-            while ((msg = io.readLine()) != null) {
-                if (msg.startsWith("/")) {
-                    commands.handle(msg);
-                } else {
-                    sendChat(msg);
-                }
+    private <T> void whenDone(CompletableFuture<T> result, Consumer<T> then) {
+        // login and register finish on the hash pool / db writer
+        // a blocking session has its own thread and just waits, a nio session
+        // frees its worker and carries on there once the answer is in. lines
+        // that arrive in the meantime are held and replayed in order
+        Executor executor = io.callbackExecutor();
+        if (executor == null) {
+            then.accept(result.join());
+            return;
+        }
+
+        state = State.AUTH_PENDING;
+        result.whenCompleteAsync((value, error) -> {
+            if (state == State.CLOSED) return;
+            try {
+                then.accept(value);
+            } catch (Exception e) {
+                System.out.println("Client " + username + " disconnected unexpectedly: " + e.getMessage());
+                disconnect();
+                return;
             }
-        } catch (Exception e) {
-            // most likely a disconnect
-            System.out.println("Client " + username + " disconnected unexpectedly: " + e.getMessage());
-        } finally {
-            disconnect();
+
+            String held;
+            while (state != State.AUTH_PENDING && (held = heldLines.poll()) != null) {
+                onLine(held);
+            }
+        }, executor);
+    }
+
+    private void loggedIn() {
+        pendingUsername = null;
+
+        // the connection can drop while the hash pool has us, and disconnect()
+        // may run on another thread: filing the session and closing it are
+        // done under the same lock, so a closed session never gets filed
+        synchronized (closed) {
+            if (closed.get()) return;
+            state = State.CHAT;
+            server.clientLoggedIn(this);
         }
+        HANDSHAKE.recordSince(openedAt);
+        send("OK: Logged inj" + Server.CHAT_NAME);
+        server.broadcast(username + " joined the chat.", this);
     }
 
+    private void handleMessage(String msg) {
+        // a line from a logged in client, either a command or chat
+        if (msg.startsWith("/")) {
+            commands.handle(msg);
+        } else {
+            sendChat(msg);
+        }
+    }
 
     private void sendChat(String msg) {
         if (currentRoom == null) return;
@@ -133,6 +340,7 @@ public class ClientSession implements RoomMember {
             send("You do not have permission to chat.");
             return;
         }
+        long start = System.nanoTime();
 
         String formatted = "<" + PermissionManager.getName(permissionLevel) + ">"
                 + username + ": " + msg;
@@ -140,28 +348,117 @@ public class ClientSession implements RoomMember {
         if (currentRoom.shouldTagMessages()) {
             formatted = "[" + currentRoom.getName() + "] " + formatted;
         }
+        if (!fitsInFrame(formatted)) {
+            send("Message too long, it was not sent.");
+            return;
+        }
+
+        // one message for everyone, encoded once per wire format
+        // saved lines carry their id to binary clients, so they can cache them
+        Outgoing message;
+        if (currentRoom.shouldSaveHistory()) {
+            long id = server.saveHistory(currentRoom, formatted);
+            message = Outgoing.stored(id, formatted);
+        } else {
+            message = Outgoing.chat(formatted);
+        }
 
         if (currentRoom.shouldBroadcastAll()) {
-            server.broadcastRoomMessage(currentRoom, formatted);
+            server.broadcastRoomMessageRaw(currentRoom, message);
         } else {
-            currentRoom.broadcast(formatted);
+            currentRoom.broadcastRaw(message);
         }
+
+        // until every recipient has it queued, the writers take it from there
+        FANOUT.recordSince(start);
+        CHAT_MESSAGES.increment();
+        currentRoom.getMessageCounter().increment();
+    }
+    static boolean fitsInFrame(String formatted) {
+        // the client may send up to MAX_PAYLOAD, but what we send back has the
+        // rank, name, room tag and stored id in front of it, and a frame past
+        // MAX_PAYLOAD kills every binary client that gets it
+        // input : line as it goes out, without the "<id> " of a STORED frame
+        // output: true if it fits in one frame even with the longest id
+        int bytes = formatted.getBytes(StandardCharsets.UTF_8).length;
+        return bytes <= Frame.MAX_PAYLOAD - MAX_ID_BYTES;
     }
+
     @Override
     public void send(String msg) {
-        io.writeLine(msg);
+        // queued, the session's writer puts it on the wire
+        outbound.offer(msg);
+    }
+
+    public void send(Outgoing message) {
+        // typed message, e.g. Outgoing.of(Frame.JOINED, ...)
+        outbound.offerRaw(message);
+    }
+
+    @Override
+    public void sendRaw(Outgoing message) {
+        outbound.offerRaw(message);
+    }
+
+    void enableBinary() {
+        // the client asked for frames (/binary)
+        // input is switched before the answer goes out, the client won't send
+        // a frame until it has read it. output switches in the queue, right
+        // behind the answer, so everything queued before it still goes out as text
+        io.useFrames();
+        send(Frame.ACCEPTED);
+        outbound.switchToBinary();
+    }
+
+    void enableCompression() {
+        // the client asked for a deflated stream (/compress)
+        // only server -> client is compressed, what clients send is short and rare.
+        // the answer itself goes out uncompressed, the client swaps in an
+        // inflater after reading it, everything behind it is deflated
+        if (!Server.COMPRESSION) {
+            send(Frame.COMPRESS_DECLINED);
+            return;
+        }
+        if (compressing) {
+            send("Already compressed.");
+            return;
+        }
+        compressing = true;
+        send(Frame.COMPRESS_ACCEPTED);
+        outbound.switchToDeflate(Server.COMPRESSION_LEVEL);
     }
 
     public void disconnect() {
+        // safe to call more than once, only the first call does anything
+        synchronized (closed) { // see loggedIn()
+            if (!closed.compareAndSet(false, true)) return;
+            state = State.CLOSED;
+        }
+        TimerWheel.Timeout hb = heartbeat;
+        if (hb != null) hb.cancel();
+
         try {
             server.removeClient(this);  // remove from rooms + client list
         } catch (Exception ignored) {}
 
         try {
-            io.close();
+            outbound.close(true);  // flush whatever is still queued, then close the io (on the writer)
         } catch (Exception ignored) {}
 
-        System.out.println("Client " + username + " fully disconnected.");
+        String ratio = "";
+        if (outbound.isCompressed() && outbound.getWireBytes() > 0) {
+            ratio = String.format(", compressed %d -> %d bytes, ratio %.2f", outbound.getRawBytes(),
+                    outbound.getWireBytes(), (double) outbound.getRawBytes() / outbound.getWireBytes());
+        }
+        if (openedAt != 0 && lifetime.shouldCommit()) {
+            lifetime.username = username;
+            lifetime.queued = outbound.getQueuedCount();
+            lifetime.dropped = outbound.getDroppedCount();
+            lifetime.wireBytes = outbound.getWireBytes();
+            lifetime.commit();
+        }
+        System.out.println("Client " + username + " fully disconnected. (queued "
+                + outbound.getQueuedCount() + ", dropped " + outbound.getDroppedCount() + ratio + ")");
     }
 
 
@@ -171,5 +468,60 @@ public class ClientSession implements RoomMember {
     @Override
     public int getPermissionLevel() { return permissionLevel; }
     public Room getCurrentRoom() { return currentRoom; }
-    public void setCurrentRoom(Room r) { currentRoom = r; }
+    public OutboundQueue getOutbound() { return outbound; }
+    public void setCurrentRoom(Room r) {
+        currentRoom = r;
+        if (wantsResumeToken) {
+            String token = server.issueResumeToken(username, r);
+            if (token != null) send(Outgoing.of(Frame.RESUME, "Resume token: " + token, token));
+        }
+    }
+
+    public static void runAllTests() {
+        System.out.println("ClientSession tests");
+
+        int passed = 0;
+        int failed = 0;
+
+        if (testFitsInFrame()) passed++; else failed++;
+
+        System.out.println();
+        System.out.println("test summary");
+        System.out.println("Passed: " + passed);
+        System.out.println("Failed: " + failed);
+    }
+    private static boolean testFitsInFrame() {
+        System.out.print("[TEST] chat lines that would overflow a frame are refused ... ");
+
+        try {
+            String prefix = "[Lobby] <Untrusted User>someone: ";
+
+            // the longest line a client can send, once formatted, is too big
+            String longest = prefix + "x".repeat(Frame.MAX_PAYLOAD);
+            if (fitsInFrame(longest))
+                throw new AssertionError("Line of MAX_PAYLOAD accepted");
+
+            // the longest line that fits still makes a valid STORED frame with any id
+            String fits = prefix + "x".repeat(Frame.MAX_PAYLOAD - MAX_ID_BYTES - prefix.length());
+            if (!fitsInFrame(fits))
+                throw new AssertionError("Line right at the limit refused");
+            byte[] frame = Frame.encodeBytes(Frame.STORED, Long.MAX_VALUE + " " + fits);
+            if (frame.length - Frame.HEADER_BYTES > Frame.MAX_PAYLOAD)
+                throw new AssertionError("Frame of " + frame.length + " bytes");
+            if (fitsInFrame(fits + "x"))
+                throw new AssertionError("Line one past the limit accepted");
+
+            // counted in UTF-8 bytes, not chars
+            String wide = prefix + "\u00e9".repeat((Frame.MAX_PAYLOAD - prefix.length()) / 2);
+            if (fitsInFrame(wide))
+                throw new AssertionError("Two byte chars counted as one");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
 }
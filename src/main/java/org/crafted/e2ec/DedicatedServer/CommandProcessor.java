@@ -1,6 +1,8 @@
 package org.crafted.e2ec.DedicatedServer;
 
+import java.util.List;
 import java.util.Set;
+import org.crafted.e2ec.Protocol.Frame;
 
 public class CommandProcessor {
 
@@ -18,13 +20,36 @@ public class CommandProcessor {
         String[] parts = cmd.split(" ", 2);
         String command = parts[0].toLowerCase();
 
+        JfrEvents.Command event = new JfrEvents.Command();
+        event.begin();
+        try {
+            dispatch(command, parts);
+        } finally {
+            if (event.shouldCommit()) {
+                event.command = command;
+                event.username = client.getUsername();
+                event.commit();
+            }
+        }
+    }
+
+    private void dispatch(String command, String[] parts) {
         switch (command) {
             case "/create" -> createRoom(parts);
             case "/join" -> join(parts);
+            case "/since" -> since(parts);
             case "/leave" -> leave();
-            case "/rooms" -> listRooms();
+            case "/rooms" -> rooms(parts);
+            case "/history" -> history(parts);
+            case "/dbstats" -> dbStats();
+            case "/stats" -> stats();
             case "/msg", "/whisper", "/w", "/m", "/message" -> whisper(parts);
             case "/r", "/reply" -> reply(parts);
+            case "/online" -> online(parts);
+            case Frame.NEGOTIATE -> client.enableBinary();
+            case Frame.COMPRESS -> client.enableCompression();
+            case "/resume" -> client.enableResumeToken();
+            case Frame.PONG -> client.answersPings(); // answer to a PING (or the opt-in), hearing it was the point
             case "/quit", "/exit" -> quit();
             default -> client.send("Unknown command.");
         }
@@ -58,7 +83,21 @@ public class CommandProcessor {
         client.send("Room '" + roomName + "' created successfully.");
     }
 
+    private void since(String[] parts) {
+        // /since <id>, the next /join only replays saved lines newer than id
+        // clients that cache saved messages send the last id they have right
+        // before joining. no answer, the replay is the answer
+        try {
+            client.replayAfter = Long.parseLong(parts.length < 2 ? "" : parts[1].trim());
+        } catch (NumberFormatException e) {
+            client.send("Usage: /since <id>");
+        }
+    }
+
     private void join(String[] parts) {
+        // /join <room>, the whole rest of the line is the room name
+        long afterId = client.replayAfter; // from /since, only good for this join
+        client.replayAfter = 0;
         if (parts.length < 2) {
             client.send("Usage: /join <roomname>");
             return;
@@ -84,7 +123,89 @@ public class CommandProcessor {
 
         client.setCurrentRoom(room);
         room.addMember(client);
-        client.send("Joined room: " + roomName);
+        server.unwatchRooms(client); // the browser closes once we're in
+        client.send(Outgoing.of(Frame.JOINED, "Joined room: " + roomName, roomName));
+
+        // catch the client up on what it missed
+        if (room.shouldSaveHistory() && Server.HISTORY_REPLAY > 0) {
+            for (HistoryStore.Entry e : server.getHistorySince(room, afterId, Server.HISTORY_REPLAY)) {
+                client.send(Outgoing.stored(e.id, e.body));
+            }
+        }
+    }
+
+    private void dbStats() {
+        // /dbstats, how busy the chat.db read connections are and how well the user cache does
+        if (!PermissionManager.canPerform(client.getUsername(),
+                client.getPermissionLevel(),
+                "command.dbstats")) {
+            client.send("You do not have permission to view database stats.");
+            return;
+        }
+        client.send(server.getReadPoolStats().toString());
+        client.send(server.getUserCache().toString());
+    }
+
+    private void stats() {
+        // /stats, the server's counters, gauges and latency histograms (microseconds)
+        if (!PermissionManager.canPerform(client.getUsername(),
+                client.getPermissionLevel(),
+                "command.stats")) {
+            client.send("You do not have permission to view server stats.");
+            return;
+        }
+        client.send("Server stats:");
+        for (String line : server.getMetrics().report()) {
+            client.send(" " + line);
+        }
+    }
+
+    private void history(String[] parts) {
+        // /history <room> [before-id] [limit]
+        // pages backwards through a room's saved messages, oldest line first
+        if (parts.length < 2) {
+            client.send("Usage: /history <room> [before-id] [limit]");
+            return;
+        }
+
+        String[] args = parts[1].trim().split("\\s+");
+        Room room = server.getRoom(args[0]);
+        if (room == null) {
+            client.send("Room does not exist.");
+            return;
+        }
+        if (!room.canView(client.getPermissionLevel())) {
+            client.send("You do not have permission to view this room.");
+            return;
+        }
+        if (!room.shouldSaveHistory()) {
+            client.send("This room does not save history.");
+            return;
+        }
+
+        long beforeId = Long.MAX_VALUE;
+        int limit = 50;
+        try {
+            if (args.length > 1) beforeId = Long.parseLong(args[1]);
+            if (args.length > 2) limit = Math.max(1, Math.min(200, Integer.parseInt(args[2])));
+        } catch (NumberFormatException e) {
+            client.send("Usage: /history <room> [before-id] [limit]");
+            return;
+        }
+
+        List<HistoryStore.Entry> page = server.getHistory(room, beforeId, limit);
+        if (page.isEmpty()) {
+            client.send("No more history.");
+            return;
+        }
+
+        client.send("History for " + room.getName() + ":");
+        for (HistoryStore.Entry e : page) {
+            client.send("#" + e.id + " " + e.body);
+        }
+        if (page.size() == limit) {
+            client.send("More: /history " + room.getName() + " " + page.get(0).id + " " + limit);
+        }
     }
 
     private void leave() {
@@ -96,7 +217,21 @@ public class CommandProcessor {
 
         room.removeMember(client);
         client.setCurrentRoom(null);
-        client.send("You left the room.");
+        client.send(Outgoing.of(Frame.LEFT, "You left the room.", room.getName()));
+    }
+
+    private void rooms(String[] parts) {
+        // /rooms lists once, /rooms watch lists and then pushes changes, /rooms unwatch stops them
+        String mode = parts.length < 2 ? "" : parts[1].trim().toLowerCase();
+        switch (mode) {
+            case "" -> listRooms();
+            case "watch" -> {
+                server.watchRooms(client); // before listing, so no change falls in between
+                listRooms();
+            }
+            case "unwatch" -> server.unwatchRooms(client);
+            default -> client.send("Usage: /rooms [watch|unwatch]");
+        }
     }
 
     private void listRooms() {
@@ -108,23 +243,19 @@ public class CommandProcessor {
             if (!room.canView(client.getPermissionLevel())) continue;
 
             foundAny = true;
-            boolean canChat = room.canChat(client.getPermissionLevel());
-            boolean isCurrent = room == client.getCurrentRoom();
-
-            StringBuilder line = new StringBuilder(" - " + room.getName());
-            line.append(" (").append(room.getMemberCount()).append(" users)");
-            line.append(" (").append(canChat ? "chat ✓" : "view only").append(")");
-            if (isCurrent) line.append(" [current]");
-
-            client.send(line.toString());
+            client.send(RoomWatch.roomLine(room, client.getPermissionLevel(), room == client.getCurrentRoom()));
         }
 
         if (!foundAny) client.send("No rooms are visible to you.");
     }
+
     private void quit() {
-            client.send("Disconnecting from server...");
-            client.disconnect();
+        // quitting is on purpose, the token the client holds must not bring it back
+        server.revokeResumeTokens(client.getUsername());
+        client.send("Disconnecting from server...");
+        client.disconnect();
     }
+
     private void whisper(String[] parts) {
         if (parts.length < 2) {
             client.send("Usage: /msg <user> <message>");
@@ -139,18 +270,25 @@ public class CommandProcessor {
 
         String targetName = args[0];
         String message = args[1];
+        if (!ClientSession.fitsInFrame("[From " + client.getUsername() + "]: " + message)) {
+            client.send("Message too long, it was not sent.");
+            return;
+        }
 
-        ClientSession target = server.findUser(targetName);
-        if (target == null) {
+        // copy it, the directory's set is live and the user can log out under us
+        List<ClientSession> targets = List.copyOf(server.findUserSessions(targetName));
+        if (targets.isEmpty()) {
             client.send("User not found.");
             return;
         }
 
-        target.lastWhisperFrom = client;
-        client.lastWhisperFrom = target;
-
-        target.send("[From " + client.getUsername() + "]: " + message);
-        client.send("[To " + target.getUsername() + "]: " + message);
+        // a user logged in more than once gets it on every session
+        for (ClientSession t : targets) {
+            t.lastWhisperFrom = client;
+            t.send(Outgoing.whisper("[From " + client.getUsername() + "]: " + message));
+        }
+        client.lastWhisperFrom = targets.get(targets.size() - 1);
+        client.send(Outgoing.whisper("[To " + targetName + "]: " + message));
     }
 
     private void reply(String[] parts) {
@@ -164,9 +302,35 @@ public class CommandProcessor {
             return;
         }
 
+        // look the name up again, the session we last heard from may be gone
+        // while the user is still online somewhere else
         String message = parts[1];
-        client.lastWhisperFrom.lastWhisperFrom = client;
-        client.lastWhisperFrom.send("[From " + client.getUsername() + "]: " + message);
-        client.send("[To " + client.lastWhisperFrom.getUsername() + "]: " + message);
+        String targetName = client.lastWhisperFrom.getUsername();
+        if (!ClientSession.fitsInFrame("[From " + client.getUsername() + "]: " + message)) {
+            client.send("Message too long, it was not sent.");
+            return;
+        }
+        List<ClientSession> targets = List.copyOf(server.findUserSessions(targetName));
+        if (targets.isEmpty()) {
+            client.send("User not found.");
+            return;
+        }
+
+        for (ClientSession t : targets) {
+            t.lastWhisperFrom = client;
+            t.send(Outgoing.whisper("[From " + client.getUsername() + "]: " + message));
+        }
+        client.send(Outgoing.whisper("[To " + targetName + "]: " + message));
+    }
+
+    private void online(String[] parts) {
+        // /online [prefix], who is online (clients use it to complete names)
+        String prefix = parts.length < 2 ? "" : parts[1].trim();
+        List<String> names = server.completeUsername(prefix, 50);
+        if (names.isEmpty()) {
+            client.send("No users online matching '" + prefix + "'.");
+            return;
+        }
+        client.send("Online: " + String.join(", ", names));
     }
 }
@@ -0,0 +1,130 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DbWriter {
+// the one connection that writes to chat.db
+// callers submit a write and get a CompletableFuture back, the writer thread
+// groups everything pending into one transaction per flush, so a burst of
+// registrations pays for one fsync instead of one each
+
+    static final int MAX_BATCH = 1000;
+
+    public interface Write<T> {
+        // runs on the writer thread inside the group transaction
+        T run(Connection conn) throws SQLException;
+    }
+
+    private static class Task<T> {
+        final Write<T> write;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T result;
+        Exception error;
+        Task(Write<T> write) { this.write = write; }
+        void finish() {
+            if (error != null) future.completeExceptionally(error);
+            else future.complete(result);
+        }
+    }
+
+    private final Connection conn;
+    private final long flushMillis;
+    private final BlockingQueue<Task<?>> pending = new LinkedBlockingQueue<>();
+
+    public DbWriter(String dbPath, String profile, long flushMillis) throws SQLException {
+        // open the write connection and apply the durability profile
+        // chat.db is always WAL so the ReadPool never waits on a write,
+        // the profile only decides whether every commit is fsynced
+        // input : database path, "fast" (synchronous=NORMAL) or "safe"
+        //         (synchronous=FULL), how long to gather writes
+        // output: none
+        this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        this.flushMillis = flushMillis;
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute(profile.equals("safe") ? "PRAGMA synchronous=FULL" : "PRAGMA synchronous=NORMAL");
+        }
+
+        Thread t = new Thread(this::writeLoop, "db-writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public <T> CompletableFuture<T> submit(Write<T> write) {
+        // queue a write, the future completes once its transaction has committed
+        // input : work to run on the write connection
+        // output: future with the work's result, or its SQLException
+        Task<T> task = new Task<>(write);
+        pending.add(task);
+        return task.future;
+    }
+
+    private void writeLoop() {
+        List<Task<?>> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(pending.take());
+
+                // give other writers a moment to join this transaction
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+                while (batch.size() < MAX_BATCH) {
+                    long wait = deadline - System.nanoTime();
+                    Task<?> next = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void commitBatch(List<Task<?>> batch) {
+        // every task gets a savepoint so one failed write (e.g. a taken
+        // username) doesn't take the rest of the group down with it
+        try (Statement sp = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            for (Task<?> task : batch) {
+                sp.execute("SAVEPOINT task");
+                try {
+                    run(task);
+                    sp.execute("RELEASE task");
+                } catch (SQLException | RuntimeException e) {
+                    task.error = e;
+                    sp.execute("ROLLBACK TO task");
+                    sp.execute("RELEASE task");
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {}
+            for (Task<?> task : batch) task.error = e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ignored) {}
+        }
+
+        for (Task<?> task : batch) task.finish();
+    }
+
+    private <T> void run(Task<T> task) throws SQLException {
+        task.result = task.write.run(conn);
+    }
+}
@@ -0,0 +1,78 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.concurrent.Executor;
+
+public class Heartbeats {
+// keeps an eye on every session through one shared TimerWheel
+// a client opts in by sending /pong once (ours does right after login). from
+// then on going quiet for a heartbeat interval gets it a PING, and staying
+// quiet for the idle timeout gets it disconnected, which takes it out of the
+// client list and its room. that's what frees a thread stuck reading from a
+// peer that vanished without a FIN.
+// clients that never sent /pong (telnet, older clients) are never pinged,
+// they'd only see PING lines they can't answer. they get the much longer
+// silent timeout instead, TCP keepalive covers dead peers in between
+
+    private final TimerWheel wheel;
+    private final long intervalMs; // 0 = no pings
+    private final long idleMs;     // 0 = never reap
+    private final long silentMs;   // same for clients that don't answer pings, 0 = never
+
+    // counters, so /stats shows their rates and /metrics exports them as _total
+    private final Metrics.Counter pings = Server.metrics.counter("heartbeat.pings");
+    private final Metrics.Counter reaped = Server.metrics.counter("heartbeat.reaped");
+
+    public Heartbeats(long intervalSeconds, long idleSeconds, long silentSeconds, Executor executor) {
+        // input : seconds between pings, seconds of silence before a session that
+        //         answers pings is dropped, same for one that doesn't, where checks run
+        this.intervalMs = intervalSeconds * 1000;
+        this.idleMs = idleSeconds * 1000;
+        this.silentMs = silentSeconds * 1000;
+        this.wheel = new TimerWheel(250, 512, executor);
+    }
+
+    public boolean enabled() {
+        return intervalMs > 0 || idleMs > 0 || silentMs > 0;
+    }
+
+    long nextCheck(long idleForMs, boolean answersPings) {
+        // how long until a session that's been quiet for idleForMs needs looking at again
+        // sessions that don't answer pings are still looked at every interval,
+        // that's how one that just opted in gets picked up
+        long next = Long.MAX_VALUE;
+        long reapMs = answersPings ? idleMs : silentMs;
+        if (intervalMs > 0) next = Math.min(next, intervalMs - idleForMs % intervalMs);
+        if (reapMs > 0) next = Math.min(next, reapMs - idleForMs);
+        return Math.max(0, next);
+    }
+
+    boolean shouldReap(long idleForMs, boolean answersPings) {
+        long reapMs = answersPings ? idleMs : silentMs;
+        return reapMs > 0 && idleForMs >= reapMs;
+    }
+
+    boolean shouldPing(long idleForMs) {
+        return intervalMs > 0 && idleForMs >= intervalMs;
+    }
+
+    TimerWheel.Timeout schedule(long delayMs, Runnable check) {
+        return wheel.schedule(delayMs, check);
+    }
+
+    void pinged() {
+        pings.increment();
+    }
+
+    void reaped() {
+        reaped.increment();
+    }
+
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    public long getReapedCount() {
+        // sessions dropped for going quiet
+        return reaped.get();
+    }
+}
@@ -0,0 +1,129 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HistoryStore {
+// chat history for rooms with savehistory=true, kept in chat.db
+// saving only queues the line on the DbWriter, which inserts it with
+// whatever else is pending, so sending chat never waits on the disk
+
+    private final DbWriter writer;
+    private final ReadPool readers;
+    private final AtomicLong nextId;
+
+    public HistoryStore(ReadPool readers, DbWriter writer) throws SQLException {
+        // use the shared connections to chat.db
+        // input : read pool and writer for the database
+        // output: none
+        this.readers = readers;
+        this.writer = writer;
+        initialize();
+        nextId = new AtomicLong(maxId() + 1);
+    }
+
+    private void initialize() throws SQLException {
+        // messages table, the (room, id) index is what keeps paging fast
+        try {
+            writer.submit(c -> {
+                try (Statement stmt = c.createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS messages (
+                            id INTEGER PRIMARY KEY,
+                            room TEXT NOT NULL,
+                            body TEXT NOT NULL,
+                            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+                        );
+                    """);
+                    stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_id ON messages(room, id);");
+                }
+                return null;
+            }).join();
+        } catch (CompletionException e) {
+            throw new SQLException("could not create messages table", e.getCause());
+        }
+    }
+
+    private long maxId() throws SQLException {
+        return readers.read(r -> {
+            try (ResultSet rs = r.prepare("SELECT COALESCE(MAX(id), 0) FROM messages").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    public long save(String room, String body) {
+        // queue a message for the writer
+        // ids are handed out here so callers know them before the insert lands
+        // input : room name and the formatted chat line
+        // output: id of the message
+        long id = nextId.getAndIncrement();
+        String sql = "INSERT INTO messages(id, room, body) VALUES(?,?,?)";
+
+        writer.submit(c -> {
+            try (PreparedStatement stmt = c.prepareStatement(sql)) {
+                stmt.setLong(1, id);
+                stmt.setString(2, room);
+                stmt.setString(3, body);
+                return stmt.executeUpdate();
+            }
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return 0;
+        });
+        return id;
+    }
+
+    public List<Entry> page(String room, long beforeId, int limit) {
+        return page(room, 0, beforeId, limit);
+    }
+
+    public List<Entry> page(String room, long afterId, long beforeId, int limit) {
+        // keyset pagination, newest first from the index then flipped
+        // input : room name, only ids between afterId and beforeId (both excluded), max number of rows
+        // output: the newest matching entries, oldest to newest (empty on error)
+        String sql = "SELECT id, body FROM messages WHERE room = ? AND id > ? AND id < ? ORDER BY id DESC LIMIT ?";
+        List<Entry> result = new ArrayList<>();
+
+        try {
+            readers.read(r -> {
+                PreparedStatement stmt = r.prepare(sql);
+                stmt.setString(1, room);
+                stmt.setLong(2, afterId);
+                stmt.setLong(3, beforeId);
+                stmt.setInt(4, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(new Entry(rs.getLong("id"), room, rs.getString("body")));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            result.clear();
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public static class Entry {
+        // one stored chat line
+        public long id;
+        public String room;
+        public String body;
+        public Entry(long id, String room, String body) {
+            this.id = id;
+            this.room = room;
+            this.body = body;
+        }
+    }
+}
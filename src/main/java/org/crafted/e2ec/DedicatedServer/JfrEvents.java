@@ -0,0 +1,101 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+final class JfrEvents {
+// Flight Recorder events for when latency spikes, see e2ec.jfc for the
+// settings to record them with. an event that isn't enabled costs next to
+// nothing (the JIT drops it), an enabled one is only written when it took
+// longer than its threshold. no stack traces, they're what makes events expensive
+
+    private JfrEvents() {}
+
+    @Name("e2ec.SessionOpened")
+    @Label("Session Opened")
+    @Category({"E2EC", "Sessions"})
+    @Description("A connection got its first prompt")
+    @StackTrace(false)
+    static class SessionOpened extends Event {
+        @Label("Transport")
+        String transport;
+    }
+
+    @Name("e2ec.SessionClosed")
+    @Label("Session Closed")
+    @Category({"E2EC", "Sessions"})
+    @Description("A session ended, the duration is how long it was connected")
+    @StackTrace(false)
+    static class SessionClosed extends Event {
+        @Label("Username")
+        String username;
+
+        @Label("Messages Queued")
+        long queued;
+
+        @Label("Messages Dropped")
+        @Description("Lost to a full outbound queue")
+        long dropped;
+
+        @Label("Compressed Bytes")
+        @DataAmount
+        long wireBytes;
+    }
+
+    @Name("e2ec.RoomBroadcast")
+    @Label("Room Broadcast")
+    @Category({"E2EC", "Chat"})
+    @Description("One message queued for every member of a room (Room.broadcast)")
+    @StackTrace(false)
+    static class RoomBroadcast extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("e2ec.BroadcastAll")
+    @Label("Broadcast To Viewers")
+    @Category({"E2EC", "Chat"})
+    @Description("One message queued for everyone allowed to view a broadcastall room (Server.broadcastRoomMessage)")
+    @StackTrace(false)
+    static class BroadcastAll extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("e2ec.Command")
+    @Label("Command")
+    @Category({"E2EC", "Chat"})
+    @Description("A slash command handled by CommandProcessor")
+    @StackTrace(false)
+    static class Command extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Username")
+        String username;
+    }
+
+    @Name("e2ec.DbQuery")
+    @Label("Database Query")
+    @Category({"E2EC", "Database"})
+    @Description("A UserManager query, writes include the wait for the db writer's batch")
+    @StackTrace(false)
+    static class DbQuery extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Username")
+        String username;
+    }
+}
@@ -0,0 +1,41 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+public class LegacySha256Hasher implements PasswordHasher {
+// the old unsalted SHA-256 hex hashes
+// only kept so existing users can still log in, UserManager rewrites their
+// row with the current hasher the first time they do
+
+    @Override
+    public String hash(String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 missing from this JDK", e);
+        }
+    }
+
+    @Override
+    public boolean handles(String stored) {
+        // 64 hex characters, no parameters
+        return stored != null && stored.length() == 64
+                && stored.chars().allMatch(HexFormat::isHexDigit);
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        return MessageDigest.isEqual(
+                hash(password).getBytes(StandardCharsets.US_ASCII),
+                stored.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        return true;
+    }
+}
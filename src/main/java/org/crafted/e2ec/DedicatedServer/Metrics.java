@@ -0,0 +1,231 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+// counters, gauges and latency histograms behind /stats and metrics.file
+// recording never locks (a LongAdder add, or one atomic increment per
+// histogram sample) so it can sit on the chat and login paths. names are
+// dotted like the config keys, histograms are in microseconds and end in .us.
+// a timer takes a snapshot every interval: counter rates over the last
+// interval, and the whole report written to metrics.file if one is set
+
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+        private long lastCount;         // snapshot thread only
+        private volatile double rate;   // per second over the last interval
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        public double rate() {
+            return rate;
+        }
+    }
+
+    public static final class Histogram {
+    // log-linear buckets (HdrHistogram's layout, much cruder): exact below 64,
+    // 32 buckets per power of two above, so any value is within ~3%
+    // public so LoadGenerator times its bots with the same buckets
+
+        private static final int SUB = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(2 * SUB + 57 * SUB);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(index(value));
+            total.increment();
+            sum.add(value);
+            if (value > max.get()) max.accumulateAndGet(value, Math::max);
+        }
+
+        public void recordSince(long startNanos) {
+            // microseconds since a System.nanoTime() taken earlier
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double p) {
+            // input : percentile, 0-100
+            // output: lowest value of the bucket it falls in, 0 if nothing was recorded
+            long n = count();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(lowest(i), max());
+            }
+            return max();
+        }
+
+        public long countAtMost(long value) {
+            // samples no bigger than value, to bucket granularity (for cumulative buckets)
+            long n = 0;
+            for (int i = 0, last = index(value); i <= last; i++) n += counts.get(i);
+            return n;
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB) return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value); // 6 or more
+            int sub = (int) (value >>> (exp - 5)) & (SUB - 1);
+            return 2 * SUB + (exp - 6) * SUB + sub;
+        }
+
+        static long lowest(int index) {
+            if (index < 2 * SUB) return index;
+            int exp = (index - 2 * SUB) / SUB + 6;
+            int sub = (index - 2 * SUB) % SUB;
+            return (long) (SUB + sub) << (exp - 5);
+        }
+    }
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long lastSnapshotNanos = startNanos;
+    private ScheduledExecutorService timer;
+
+    public Counter counter(String name) {
+        // the counter of that name, made on first use
+        // hot paths keep the result in a field instead of looking it up every time
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        // a value read when a report is made (queue depths, open connections)
+        gauges.put(name, value);
+    }
+
+    public Map<String, Counter> getCounters() {
+        return new TreeMap<>(counters);
+    }
+
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    public Map<String, Long> readGauges() {
+        // every gauge's current value, sorted by name
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            try {
+                values.put(g.getKey(), g.getValue().getAsLong());
+            } catch (RuntimeException ignored) {
+                // whatever it reads isn't set up yet
+            }
+        }
+        return values;
+    }
+
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    public void start(long intervalSeconds, Path file) {
+        // starts the snapshot timer
+        // input : seconds between snapshots, file to write each one to (null for none)
+        // output: none
+        timer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("metrics").daemon().factory());
+        timer.scheduleWithFixedDelay(() -> {
+            snapshot();
+            if (file != null) write(file);
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void snapshot() {
+        // turns what the counters gained since the last snapshot into rates
+        long now = System.nanoTime();
+        double seconds = Math.max(0.001, (now - lastSnapshotNanos) / 1e9);
+        lastSnapshotNanos = now;
+        for (Counter c : counters.values()) {
+            long count = c.get();
+            c.rate = (count - c.lastCount) / seconds;
+            c.lastCount = count;
+        }
+    }
+
+    private void write(Path file) {
+        // replaces the file, readers never see half a snapshot
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            List<String> lines = new ArrayList<>();
+            lines.add("# " + Instant.now());
+            lines.addAll(report());
+            Files.write(tmp, lines);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public List<String> report() {
+        // one line per metric, what /stats shows and metrics.file holds
+        // output: lines, counters then gauges then histograms, each sorted by name
+        List<String> lines = new ArrayList<>();
+        lines.add("uptime " + getUptimeSeconds() + "s");
+        for (Map.Entry<String, Counter> c : getCounters().entrySet()) {
+            lines.add(String.format("%s %d (%.1f/s)", c.getKey(), c.getValue().get(), c.getValue().rate()));
+        }
+        for (Map.Entry<String, Long> g : readGauges().entrySet()) {
+            lines.add(g.getKey() + " " + g.getValue());
+        }
+        for (Map.Entry<String, Histogram> e : getHistograms().entrySet()) {
+            Histogram h = e.getValue();
+            if (h.count() == 0) {
+                lines.add(e.getKey() + " -");
+                continue;
+            }
+            lines.add(e.getKey() + " p50 " + h.percentile(50) + " p90 " + h.percentile(90)
+                    + " p99 " + h.percentile(99) + " p99.9 " + h.percentile(99.9)
+                    + " max " + h.max() + " (n=" + h.count() + ")");
+        }
+        return lines;
+    }
+}
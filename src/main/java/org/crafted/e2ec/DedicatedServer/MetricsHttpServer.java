@@ -0,0 +1,158 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+public class MetricsHttpServer {
+// GET /metrics in the Prometheus text format, for scraping
+// runs on its own single thread, a scrape only reads counters and concurrent
+// sets, so it never holds anything a chat or session thread waits on.
+// names are the Metrics names with dots as underscores under e2ec_,
+// histograms become summaries in seconds (quantiles 0.5 to 0.999, _sum, _count)
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Metrics metrics;
+    private HttpServer http;
+
+    public MetricsHttpServer(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start(String bindIp, int port) throws IOException {
+        // input : address and port to listen on (keep it local, there's no auth)
+        // output: none
+        http = HttpServer.create(new InetSocketAddress(bindIp, port), 0);
+        http.setExecutor(Executors.newSingleThreadExecutor(
+                Thread.ofPlatform().name("metrics-http").daemon().factory()));
+        http.createContext("/metrics", this::handle);
+        http.start();
+        System.out.println("Metrics on http://" + bindIp + ":" + port + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String render() {
+        // the whole scrape
+        // output: Prometheus text exposition
+        StringBuilder sb = new StringBuilder(8192);
+
+        type(sb, "e2ec_room_members", "gauge", "sessions in each room");
+        for (Room room : Server.rooms.values()) {
+            sample(sb, "e2ec_room_members", label("room", room.getName()), room.getMemberCount());
+        }
+
+        // per-room counters share one metric with a room label
+        type(sb, "e2ec_room_messages_total", "counter", "chat lines sent in each room");
+        for (Map.Entry<String, Metrics.Counter> c : metrics.getCounters().entrySet()) {
+            String name = c.getKey();
+            if (name.startsWith("room.") && name.endsWith(".messages")) {
+                String room = name.substring("room.".length(), name.length() - ".messages".length());
+                sample(sb, "e2ec_room_messages_total", label("room", room), c.getValue().get());
+            }
+        }
+
+        for (Map.Entry<String, Metrics.Counter> c : metrics.getCounters().entrySet()) {
+            if (c.getKey().startsWith("room.")) continue;
+            String name = metricName(c.getKey()) + "_total";
+            type(sb, name, "counter", null);
+            sample(sb, name, "", c.getValue().get());
+        }
+
+        for (Map.Entry<String, Long> g : metrics.readGauges().entrySet()) {
+            String name = metricName(g.getKey());
+            type(sb, name, "gauge", null);
+            sample(sb, name, "", g.getValue());
+        }
+
+        for (Map.Entry<String, Metrics.Histogram> e : metrics.getHistograms().entrySet()) {
+            String key = e.getKey().endsWith(".us") ? e.getKey().substring(0, e.getKey().length() - 3) : e.getKey();
+            String name = metricName(key) + "_seconds";
+            Metrics.Histogram h = e.getValue();
+            type(sb, name, "summary", null);
+            for (double q : QUANTILES) {
+                sample(sb, name, label("quantile", String.valueOf(q)), h.percentile(q * 100) / 1e6);
+            }
+            sample(sb, name + "_sum", "", h.sum() / 1e6);
+            sample(sb, name + "_count", "", h.count());
+        }
+
+        renderJvm(sb);
+        return sb.toString();
+    }
+
+    private void renderJvm(StringBuilder sb) {
+        // the usual jvm_* metrics straight from the management beans
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        type(sb, "jvm_memory_bytes_used", "gauge", null);
+        sample(sb, "jvm_memory_bytes_used", label("area", "heap"), heap.getUsed());
+        sample(sb, "jvm_memory_bytes_used", label("area", "nonheap"), nonHeap.getUsed());
+        type(sb, "jvm_memory_bytes_committed", "gauge", null);
+        sample(sb, "jvm_memory_bytes_committed", label("area", "heap"), heap.getCommitted());
+        sample(sb, "jvm_memory_bytes_committed", label("area", "nonheap"), nonHeap.getCommitted());
+        type(sb, "jvm_memory_bytes_max", "gauge", null);
+        sample(sb, "jvm_memory_bytes_max", label("area", "heap"), heap.getMax());
+
+        type(sb, "jvm_gc_collection_seconds", "summary", "time spent in each collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collection_seconds_count", label("gc", gc.getName()), gc.getCollectionCount());
+            sample(sb, "jvm_gc_collection_seconds_sum", label("gc", gc.getName()), gc.getCollectionTime() / 1e3);
+        }
+
+        type(sb, "jvm_threads_current", "gauge", "platform threads");
+        sample(sb, "jvm_threads_current", "", ManagementFactory.getThreadMXBean().getThreadCount());
+        type(sb, "process_uptime_seconds", "gauge", null);
+        sample(sb, "process_uptime_seconds", "", ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    static String metricName(String dotted) {
+        // "db.get_user" -> "e2ec_db_get_user", anything Prometheus doesn't allow becomes _
+        StringBuilder sb = new StringBuilder("e2ec_");
+        for (char c : dotted.toCharArray()) {
+            sb.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    static String label(String name, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return "{" + name + "=\"" + escaped + "\"}";
+    }
+
+    private static void type(StringBuilder sb, String name, String type, String help) {
+        if (help != null) sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append(labels).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+}
@@ -0,0 +1,196 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.crafted.e2ec.Protocol.Frame;
+
+public class NioClientIO implements ClientIO {
+// ClientIO for the non-blocking transport
+// reads are pushed in by the NioServer selector thread, writes are queued
+// and handed back to the selector thread to put on the wire
+
+    static final int MAX_LINE_BYTES = 64 * 1024;
+    // unwritten bytes we take before telling the OutboundQueue to hold on
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final ExecutorService worker; // runs this connection's session, in order
+    SelectionKey key;
+    ClientSession session;
+
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private volatile boolean frames = false; // set by the session, read by the selector
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(Frame.HEADER_BYTES);
+    private byte[] framePayload;            // payload being filled, null while reading a header
+    private int frameFilled;
+    final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    final AtomicLong pendingBytes = new AtomicLong(); // queued in pendingWrites, not on the wire yet
+    private final AtomicReference<Runnable> onWritable = new AtomicReference<>();
+    volatile boolean closing = false;
+
+    NioClientIO(NioServer server, SocketChannel channel, ExecutorService worker) {
+        this.server = server;
+        this.channel = channel;
+        this.worker = worker;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void useFrames() {
+        // the client won't send a frame before it has our answer, which is
+        // queued after this, so the selector sees the flag before any frame bytes
+        frames = true;
+    }
+
+    @Override
+    public void writeLine(String line) {
+        // queue a line for the selector thread, it is picked up on flush()
+        if (closing) return;
+        ByteBuffer buf = ClientIO.encodeLine(line);
+        pendingBytes.addAndGet(buf.remaining());
+        pendingWrites.add(buf);
+    }
+
+    @Override
+    public void writeRaw(ByteBuffer payload) {
+        // no copy of our own, the selector's gathering write reads from a
+        // duplicate of the shared buffer, we only need our own position/limit
+        if (closing) return;
+        pendingBytes.addAndGet(payload.remaining());
+        pendingWrites.add(payload.duplicate());
+    }
+
+    @Override
+    public void flush() {
+        // hand everything queued so far to the selector in one go
+        if (!pendingWrites.isEmpty()) scheduleWrite();
+    }
+
+    @Override
+    public boolean canWrite() {
+        return pendingBytes.get() < MAX_PENDING_BYTES;
+    }
+
+    @Override
+    public void whenWritable(Runnable callback) {
+        // parked until the selector has written enough, checked again after
+        // parking in case it already did while we were getting here
+        onWritable.set(callback);
+        if (canWrite()) runWritable();
+    }
+
+    @Override
+    public void close() {
+        // close once everything already queued has been written
+        closing = true;
+        scheduleWrite();
+    }
+
+    @Override
+    public Executor callbackExecutor() {
+        // back onto this connection's worker so the session stays single threaded
+        return worker;
+    }
+
+    void scheduleWrite() {
+        // ask the selector for OP_WRITE, only once per batch of writes
+        if (writeScheduled.compareAndSet(false, true)) {
+            server.requestWrite(this);
+        }
+    }
+
+    /* ---------- called from the selector thread ---------- */
+
+    void written(long n) {
+        // the selector put n bytes on the wire, wake a writer waiting for room
+        // once half of it is free, not for every message that fits again
+        if (pendingBytes.addAndGet(-n) <= MAX_PENDING_BYTES / 2) runWritable();
+    }
+
+    private void runWritable() {
+        // whoever takes the callback runs it, so it runs once
+        Runnable callback = onWritable.getAndSet(null);
+        if (callback != null) callback.run();
+    }
+
+    void onBytes(ByteBuffer buf) throws IOException {
+        // split freshly read bytes into lines (or frames) and hand them to the worker
+        // input : buffer flipped for reading
+        // output: none
+        if (frames) {
+            onFrameBytes(buf);
+            return;
+        }
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (b == '\n') {
+                byte[] raw = partialLine.toByteArray();
+                partialLine.reset();
+
+                int len = raw.length;
+                if (len > 0 && raw[len - 1] == '\r') len--;
+                String line = new String(raw, 0, len, StandardCharsets.UTF_8);
+
+                worker.execute(() -> session.onLine(line));
+            } else {
+                partialLine.write(b);
+                if (partialLine.size() > MAX_LINE_BYTES) {
+                    throw new IOException("line too long");
+                }
+            }
+        }
+    }
+
+    private void onFrameBytes(ByteBuffer buf) throws IOException {
+        // frames can be split over any number of reads, keep filling where we left off
+        while (buf.hasRemaining()) {
+            if (framePayload == null) {
+                while (frameHeader.hasRemaining() && buf.hasRemaining()) frameHeader.put(buf.get());
+                if (frameHeader.hasRemaining()) return;
+
+                frameHeader.flip();
+                byte type = frameHeader.get();
+                int length = frameHeader.getInt();
+                frameHeader.clear();
+                if (type != Frame.INPUT) throw new IOException("unexpected frame type " + type);
+                if (length < 0 || length > Frame.MAX_PAYLOAD) throw new IOException("frame too large");
+
+                framePayload = new byte[length];
+                frameFilled = 0;
+            }
+
+            int n = Math.min(buf.remaining(), framePayload.length - frameFilled);
+            buf.get(framePayload, frameFilled, n);
+            frameFilled += n;
+
+            if (frameFilled == framePayload.length) {
+                String line = new String(framePayload, StandardCharsets.UTF_8);
+                framePayload = null;
+                worker.execute(() -> session.onLine(line));
+            }
+        }
+    }
+
+    void onClosed() {
+        // peer went away, let the session clean up on its own worker
+        closing = true;
+        pendingWrites.clear();
+        worker.execute(() -> session.disconnect());
+    }
+}
@@ -0,0 +1,170 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NioServer {
+// non-blocking transport (transport=nio in server.properties)
+// one selector thread does all the socket I/O, a small pool of workers runs
+// the ClientSession state machines. every connection is pinned to one worker
+// so its lines are always handled in order
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService[] workers;
+    private int nextWorker = 0;
+
+    // connections that want OP_WRITE, filled from any thread
+    private final Queue<NioClientIO> writeRequests = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+
+    public NioServer(String bindIp, int port, int workerCount) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindIp, port), 50);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        workers = new ExecutorService[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            int n = i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "nio-worker-" + n);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void run() throws IOException {
+        // selector loop, never returns
+        System.out.println("Chat server running on port " + serverChannel.socket().getLocalPort()
+                + " (nio, " + workers.length + " workers)");
+
+        while (true) {
+            selector.select();
+            processWriteRequests();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) continue;
+
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.isReadable()) read(key);
+                    if (key.isValid() && key.isWritable()) write(key);
+                } catch (IOException e) {
+                    closeConnection(key);
+                }
+            }
+        }
+    }
+
+    void requestWrite(NioClientIO io) {
+        // called from worker / broadcast threads, picked up by the selector
+        writeRequests.add(io);
+        selector.wakeup();
+    }
+
+    private void processWriteRequests() {
+        NioClientIO io;
+        while ((io = writeRequests.poll()) != null) {
+            SelectionKey key = io.key;
+            if (key == null || !key.isValid()) continue;
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true); // dead peers of clients that don't answer pings
+
+            ExecutorService worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+
+            NioClientIO io = new NioClientIO(this, channel, worker);
+            ClientSession session = Server.newSession(io);
+            io.session = session;
+            io.key = channel.register(selector, SelectionKey.OP_READ, io);
+
+            worker.execute(session::open);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        NioClientIO io = (NioClientIO) key.attachment();
+
+        readBuffer.clear();
+        int n = io.channel().read(readBuffer);
+        if (n < 0) {
+            closeConnection(key);
+            return;
+        }
+        readBuffer.flip();
+        io.onBytes(readBuffer);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        NioClientIO io = (NioClientIO) key.attachment();
+
+        // gather everything queued into one write call instead of one per line
+        while (!io.pendingWrites.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : io.pendingWrites) {
+                gather[n++] = b;
+                if (n == gather.length) break;
+            }
+            io.written(io.channel().write(gather, 0, n));
+
+            for (int i = 0; i < n; i++) {
+                if (gather[i].hasRemaining()) {
+                    Arrays.fill(gather, null);
+                    return; // socket buffer full, wait for next OP_WRITE
+                }
+                io.pendingWrites.poll();
+            }
+            Arrays.fill(gather, 0, n, null);
+        }
+
+        // drained, but a writer may have queued more since we last looked
+        io.writeScheduled.set(false);
+        if (!io.pendingWrites.isEmpty() && io.writeScheduled.compareAndSet(false, true)) return;
+
+        if (io.closing) {
+            key.cancel();
+            io.channel().close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeConnection(SelectionKey key) {
+        NioClientIO io = (NioClientIO) key.attachment();
+        key.cancel();
+        try {
+            io.channel().close();
+        } catch (IOException ignored) {}
+        io.onClosed();
+    }
+}
@@ -0,0 +1,84 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class OnlineDirectory {
+// logged in users by name, for /msg, /r and /online
+// names are case-folded so "Bob" and "bob" are the same user. one user can
+// be logged in more than once, each name maps to all of its sessions.
+// the sorted name set next to the map is what makes prefix lookups cheap
+
+    private final ConcurrentHashMap<String, Set<ClientSession>> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+
+    static String fold(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    public void add(ClientSession session) {
+        // file a freshly logged in session under its name
+        // input : session with its username set
+        // output: none
+        // compute() holds the key while the name set is updated, so add/remove
+        // for the same name can't interleave and leave the two out of step
+        sessions.compute(fold(session.getUsername()), (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+                names.add(name);
+            }
+            set.add(session);
+            return set;
+        });
+    }
+
+    public void remove(ClientSession session) {
+        // forget a session, and its name once it was the last one
+        // input : session that is going away
+        // output: none
+        if (session.getUsername() == null) return;
+
+        sessions.computeIfPresent(fold(session.getUsername()), (name, set) -> {
+            set.remove(session);
+            if (!set.isEmpty()) return set;
+            names.remove(name);
+            return null;
+        });
+    }
+
+    public Set<ClientSession> find(String username) {
+        // every session a user is logged in with
+        // input : username, any case
+        // output: read-only set, empty if the user is offline
+        Set<ClientSession> set = sessions.get(fold(username));
+        return set == null ? Set.of() : Collections.unmodifiableSet(set);
+    }
+
+    public List<String> complete(String prefix, int limit) {
+        // online usernames starting with prefix, e.g. for tab completion
+        // input : prefix (any case, may be empty), max number of names
+        // output: usernames as they logged in, sorted by folded name
+        String from = fold(prefix);
+        List<String> result = new ArrayList<>();
+
+        for (String name : names.tailSet(from)) {
+            if (!name.startsWith(from) || result.size() >= limit) break;
+
+            for (ClientSession s : sessions.getOrDefault(name, Set.of())) {
+                result.add(s.getUsername());
+                break;
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        // number of distinct users online
+        return sessions.size();
+    }
+}
@@ -0,0 +1,359 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+public class OutboundQueue {
+// bounded queue of messages waiting to go out to one client
+// senders only enqueue, a writer task on the executor drains onto the ClientIO
+// so one client with a full TCP window only ever stalls itself.
+// a transport with its own write buffer (NIO) holds the writer back through
+// ClientIO.canWrite, so a slow client's backlog stays here where capacity applies.
+// the writer also picks the wire format (text lines or frames) for each message,
+// and deflates the stream once the client asked for compression
+
+    enum OverflowPolicy {
+        DROP_OLDEST, // silently drop the oldest queued line
+        DISCONNECT,  // kick the client, it can't keep up
+        COALESCE;    // drop the oldest lines but tell the client how many it missed
+
+        static OverflowPolicy parse(String raw) {
+            // parses the outbound.overflow setting, e.g. "drop_oldest"
+            // input : raw string from server.properties
+            // output: matching policy, COALESCE if unknown
+            try {
+                return valueOf(raw.trim().toUpperCase());
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return COALESCE;
+            }
+        }
+    }
+
+    private final ClientIO io;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Executor writer;
+    private final Runnable onOverflowDisconnect;
+
+    private final ReentrantLock lock = new ReentrantLock();      // guards the fields below
+    private final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+    private int skipped = 0;            // coalesced lines not reported yet
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+
+    private final ReentrantLock writeLock = new ReentrantLock(); // one writer on the io at a time
+    private boolean binary = false;     // guarded by writeLock, flipped when the writer reaches SWITCH_TO_BINARY
+    private Deflater deflater;          // guarded by writeLock, set when the writer reaches SWITCH_TO_DEFLATE
+    private byte[] deflateBuf;
+    private boolean finished = false;   // guarded by writeLock, the deflater is ended and nothing more goes out
+    private volatile int deflateLevel;
+    private volatile boolean compressed = false;
+
+    // how long the closing task waits for a writer that's stuck on the socket
+    private static final long CLOSE_WAIT_MS = 2000;
+
+    // queue entries marking where the client's stream changes format, never sent themselves
+    private static final Outgoing SWITCH_TO_BINARY = Outgoing.system("");
+    private static final Outgoing SWITCH_TO_DEFLATE = Outgoing.system("");
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long rawBytes;  // bytes handed to the deflater (only written by the writer)
+    private volatile long wireBytes; // compressed bytes that came out of it
+
+    public OutboundQueue(ClientIO io, int capacity, OverflowPolicy policy,
+                         Executor writer, Runnable onOverflowDisconnect) {
+        this.io = io;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.writer = writer;
+        this.onOverflowDisconnect = onOverflowDisconnect;
+    }
+
+    public void offer(String line) {
+        // queue a line for the client, never blocks on the socket
+        // input : line to send
+        // output: none
+        offerRaw(Outgoing.system(line));
+    }
+
+    public void offerRaw(Outgoing message) {
+        // queue a prepared message, e.g. one broadcast shared by a whole room
+        // input : message, not modified
+        // output: none
+        boolean overflow = false;
+        boolean schedule = false;
+
+        lock.lock();
+        try {
+            if (closed) return;
+
+            if (queue.size() >= capacity) {
+                dropped.incrementAndGet();
+                switch (policy) {
+                    case DROP_OLDEST -> dropOldest();
+                    case COALESCE -> {
+                        dropOldest();
+                        skipped++;
+                    }
+                    case DISCONNECT -> overflow = true;
+                }
+            }
+
+            if (!overflow) {
+                queue.addLast(message);
+                queued.incrementAndGet();
+                if (!drainScheduled) {
+                    drainScheduled = true;
+                    schedule = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) {
+            onOverflowDisconnect.run();
+        } else if (schedule) {
+            writer.execute(this::drain);
+        }
+    }
+
+    public void switchToBinary() {
+        // everything queued after this point goes out as frames
+        // output: none
+        addMarker(SWITCH_TO_BINARY);
+    }
+
+    public void switchToDeflate(int level) {
+        // everything queued after this point goes out deflated, flushed (SYNC_FLUSH)
+        // at the end of every batch so nothing waits in the deflater
+        // input : zlib level, 1 (fast) to 9 (small)
+        // output: none
+        deflateLevel = level;
+        compressed = true;
+        addMarker(SWITCH_TO_DEFLATE);
+    }
+
+    private void addMarker(Outgoing marker) {
+        boolean schedule = false;
+
+        lock.lock();
+        try {
+            if (closed) return;
+            queue.addLast(marker);
+            if (!drainScheduled) {
+                drainScheduled = true;
+                schedule = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (schedule) writer.execute(this::drain);
+    }
+
+    private void dropOldest() {
+        // drop the oldest message to make room, but never a format switch
+        // caller holds lock
+        Iterator<Outgoing> it = queue.iterator();
+        while (it.hasNext()) {
+            Outgoing o = it.next();
+            if (o != SWITCH_TO_BINARY && o != SWITCH_TO_DEFLATE) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        // writer task, empties the queue onto the io
+        boolean paused;
+        writeLock.lock();
+        try {
+            paused = writeAll(true);
+            if (!paused && isClosed()) finish(); // closeIo() gave up waiting for us, so it's on us
+        } finally {
+            writeLock.unlock();
+        }
+        // the io is backed up: the rest stays queued (drainScheduled stays set,
+        // so the overflow policy kicks in if it keeps growing) until it has room
+        if (paused) io.whenWritable(() -> writer.execute(this::drain));
+    }
+
+    private boolean writeAll(boolean clearsSchedule) {
+        // writes queued lines until the queue is empty, then flushes once
+        // everything queued while the previous batch was being written goes
+        // out together, that's what keeps /rooms and busy rooms to a few writes
+        // input : whether this is the scheduled drain (and should reset the flag when done)
+        // output: true if the scheduled drain stopped early because io.canWrite() said no,
+        //         the closing pass never stops early
+        if (finished) return false;
+        boolean paused = false;
+        while (true) {
+            Outgoing next;
+            int skip;
+
+            lock.lock();
+            try {
+                if (clearsSchedule && !closed && !io.canWrite()) {
+                    paused = true;
+                    break;
+                }
+                skip = skipped;
+                skipped = 0;
+                next = queue.pollFirst();
+                if (next == null && skip == 0) {
+                    if (clearsSchedule) drainScheduled = false;
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (skip > 0) {
+                Outgoing notice = Outgoing.system("*** " + skip + " messages skipped, your connection is too slow ***");
+                write(notice.encoded(binary));
+            }
+            if (next == SWITCH_TO_BINARY) {
+                binary = true;
+            } else if (next == SWITCH_TO_DEFLATE) {
+                if (deflater == null) {
+                    deflater = new Deflater(deflateLevel);
+                    deflateBuf = new byte[8 * 1024];
+                }
+            } else if (next != null) {
+                write(next.encoded(binary));
+            }
+        }
+        if (deflater != null) deflate(Deflater.SYNC_FLUSH);
+        io.flush();
+        return paused;
+    }
+
+    private void write(ByteBuffer payload) {
+        // one encoded message onto the io, through the deflater if there is one
+        if (deflater == null) {
+            io.writeRaw(payload);
+            return;
+        }
+        rawBytes += payload.remaining();
+        deflater.setInput(payload.duplicate()); // shared buffer, don't move its position
+        deflate(Deflater.NO_FLUSH);
+    }
+
+    private void deflate(int flushMode) {
+        // drain the deflater, each chunk gets its own buffer since the io may hold on to it
+        while (true) {
+            int n = deflater.deflate(deflateBuf, 0, deflateBuf.length, flushMode);
+            if (n > 0) {
+                wireBytes += n;
+                io.writeRaw(ByteBuffer.wrap(Arrays.copyOf(deflateBuf, n)));
+            }
+            // NO_FLUSH: until the input is used up, SYNC_FLUSH: until a chunk comes back short
+            if (flushMode == Deflater.NO_FLUSH ? deflater.needsInput() : n < deflateBuf.length) return;
+        }
+    }
+
+    public void close(boolean flush) {
+        // stops accepting lines and closes the io. the rest happens in one last
+        // task on the writer executor, never on the caller: that may be a
+        // broadcaster that just overflowed this queue, it mustn't block on our socket
+        // input : true to write out what is already queued before closing
+        // output: none
+        lock.lock();
+        try {
+            closed = true;
+            if (!flush) {
+                queue.clear();
+                skipped = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        writer.execute(this::closeIo);
+    }
+
+    private void closeIo() {
+        // the closing task: flushes what's left, frees the deflater, closes the io
+        // a writer stuck on a dead socket only gets CLOSE_WAIT_MS, then the io is
+        // closed under it, which unsticks it and it ends the deflater on its way out
+        // (the deflater is only ever ended under writeLock, by whoever writes last)
+        boolean locked = false;
+        try {
+            locked = writeLock.tryLock(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (locked) {
+                writeAll(false);
+                finish();
+            }
+        } finally {
+            io.close();
+            if (locked) writeLock.unlock();
+        }
+    }
+
+    private void finish() {
+        // frees the deflater, after this the writer never touches the io again
+        // caller holds writeLock
+        if (finished) return;
+        finished = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ---------- counters ---------- */
+
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public long getRawBytes() {
+        // bytes before compression, 0 until the stream is deflated
+        return rawBytes;
+    }
+
+    public long getWireBytes() {
+        // bytes after compression
+        return wireBytes;
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.nio.ByteBuffer;
+import org.crafted.e2ec.Protocol.Frame;
+
+public final class Outgoing {
+// one message on its way to one or more clients
+// carries what kind of message it is so binary clients get a typed frame,
+// text clients get the same line as always. each wire format is encoded
+// the first time a recipient needs it and then shared, so a broadcast to a
+// room full of text clients still encodes exactly once
+
+    final byte type;     // Frame type
+    final String text;   // the line text clients get
+    final String payload; // the frame payload binary clients get
+
+    private volatile ByteBuffer textBytes;
+    private volatile ByteBuffer frameBytes;
+
+    private Outgoing(byte type, String text, String payload) {
+        this.type = type;
+        this.text = text;
+        this.payload = payload;
+    }
+
+    static Outgoing of(byte type, String text, String payload) {
+        // message whose frame payload differs from its text line, e.g. JOINED carries just the room name
+        // input : frame type, line for text clients, payload for binary clients
+        // output: the message
+        return new Outgoing(type, text, payload);
+    }
+
+    static Outgoing of(byte type, String text) {
+        return new Outgoing(type, text, text);
+    }
+
+    static Outgoing system(String text) {
+        return of(Frame.SYSTEM, text);
+    }
+
+    static Outgoing chat(String text) {
+        return of(Frame.CHAT, text);
+    }
+
+    static Outgoing whisper(String text) {
+        return of(Frame.WHISPER, text);
+    }
+
+    static Outgoing stored(long id, String text) {
+        // chat line from a room's saved history, binary clients also get its id
+        return of(Frame.STORED, text, id + " " + text);
+    }
+
+    static Outgoing event(String text) {
+        return of(Frame.EVENT, text);
+    }
+
+    ByteBuffer encoded(boolean binary) {
+        // bytes for one wire format, shared between recipients, read-only
+        // two threads may race to encode the same thing, both results are identical
+        // input : true for a frame, false for a text line
+        // output: buffer callers must duplicate() before moving its position
+        if (binary) {
+            ByteBuffer b = frameBytes;
+            if (b == null) frameBytes = b = Frame.encode(type, payload);
+            return b;
+        }
+        ByteBuffer b = textBytes;
+        if (b == null) textBytes = b = ClientIO.encodeLine(text);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,19 @@
+package org.crafted.e2ec.DedicatedServer;
+
+public interface PasswordHasher {
+// one way of turning passwords into what ends up in users.password_hash
+// the stored string carries everything needed to check it again (salt,
+// cost...), so old rows keep working when the settings change
+
+    // hash a new password
+    String hash(String password);
+
+    // true if this hasher wrote the stored value
+    boolean handles(String stored);
+
+    // check a password against a stored value this hasher handles
+    boolean verify(String password, String stored);
+
+    // true if the stored value was made with weaker settings than ours
+    boolean needsRehash(String stored);
+}
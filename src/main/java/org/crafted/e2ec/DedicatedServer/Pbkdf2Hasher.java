@@ -0,0 +1,224 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+public class Pbkdf2Hasher implements PasswordHasher {
+// salted PBKDF2 (HMAC-SHA512) straight from the JDK
+// stored as pbkdf2-sha512$<iterations>$<salt>$<hash>, base64 without padding
+
+    static final String PREFIX = "pbkdf2-sha512$";
+    static final int SALT_BYTES = 16;
+    static final int HASH_BITS = 512;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+
+    public Pbkdf2Hasher(int iterations) {
+        // input : iteration count for new hashes (hash.iterations)
+        // output: none
+        this.iterations = iterations;
+    }
+
+    @Override
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations);
+
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+    }
+
+    @Override
+    public boolean handles(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    @Override
+    public boolean verify(String password, String stored) {
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) return false;
+
+        try {
+            int storedIterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(expected, derive(password, salt, storedIterations));
+        } catch (IllegalArgumentException e) {
+            return false; // mangled row
+        }
+    }
+
+    @Override
+    public boolean needsRehash(String stored) {
+        // rows from before hash.iterations was raised
+        try {
+            String it = stored.substring(PREFIX.length(), stored.indexOf('$', PREFIX.length()));
+            return Integer.parseInt(it) < iterations;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA512 missing from this JDK", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public static void runAllTests() {
+        System.out.println("Pbkdf2Hasher tests");
+
+        int passed = 0;
+        int failed = 0;
+
+        if (testRoundTrip()) passed++; else failed++;
+        if (testWrongPassword()) passed++; else failed++;
+        if (testHandles()) passed++; else failed++;
+        if (testNeedsRehash()) passed++; else failed++;
+        if (testLegacyVerify()) passed++; else failed++;
+
+        System.out.println();
+        System.out.println("test summary");
+        System.out.println("Passed: " + passed);
+        System.out.println("Failed: " + failed);
+    }
+    private static boolean testRoundTrip() {
+        System.out.print("[TEST] hash then verify ... ");
+
+        try {
+            Pbkdf2Hasher hasher = new Pbkdf2Hasher(1000);
+            String stored = hasher.hash("hunter2");
+
+            if (!stored.startsWith(PREFIX + "1000$"))
+                throw new AssertionError("Stored as " + stored);
+            if (!hasher.verify("hunter2", stored))
+                throw new AssertionError("Own hash rejected");
+
+            // salted: same password, different row
+            if (stored.equals(hasher.hash("hunter2")))
+                throw new AssertionError("Two hashes of one password are equal");
+
+            // the row carries its iterations, a hasher with other settings still checks it
+            if (!new Pbkdf2Hasher(2000).verify("hunter2", stored))
+                throw new AssertionError("Row rejected after hash.iterations changed");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testWrongPassword() {
+        System.out.print("[TEST] wrong password or mangled row fails ... ");
+
+        try {
+            Pbkdf2Hasher hasher = new Pbkdf2Hasher(1000);
+            String stored = hasher.hash("hunter2");
+
+            if (hasher.verify("hunter3", stored))
+                throw new AssertionError("Wrong password accepted");
+            if (hasher.verify("", stored))
+                throw new AssertionError("Empty password accepted");
+            if (hasher.verify("hunter2", PREFIX + "1000$not base64$x"))
+                throw new AssertionError("Mangled row accepted");
+            if (hasher.verify("hunter2", PREFIX + "1000$abc"))
+                throw new AssertionError("Row with missing parts accepted");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testHandles() {
+        System.out.print("[TEST] handles() tells the formats apart ... ");
+
+        try {
+            Pbkdf2Hasher pbkdf2 = new Pbkdf2Hasher(1000);
+            LegacySha256Hasher legacy = new LegacySha256Hasher();
+            String salted = pbkdf2.hash("hunter2");
+            String old = legacy.hash("hunter2");
+
+            if (!pbkdf2.handles(salted) || legacy.handles(salted))
+                throw new AssertionError("PBKDF2 row claimed by the wrong hasher");
+            if (!legacy.handles(old) || pbkdf2.handles(old))
+                throw new AssertionError("SHA-256 row claimed by the wrong hasher");
+
+            for (String junk : new String[] { null, "", "plaintext", old.substring(1), old.replace(old.charAt(0), 'z') }) {
+                if (pbkdf2.handles(junk) || legacy.handles(junk))
+                    throw new AssertionError("Claimed \"" + junk + "\"");
+            }
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testNeedsRehash() {
+        System.out.print("[TEST] needsRehash() after hash.iterations is raised ... ");
+
+        try {
+            String stored = new Pbkdf2Hasher(1000).hash("hunter2");
+
+            if (new Pbkdf2Hasher(1000).needsRehash(stored))
+                throw new AssertionError("Rehash with the same iterations");
+            if (new Pbkdf2Hasher(500).needsRehash(stored))
+                throw new AssertionError("Rehash after iterations were lowered");
+            if (!new Pbkdf2Hasher(2000).needsRehash(stored))
+                throw new AssertionError("No rehash after iterations were raised");
+            if (!new Pbkdf2Hasher(1000).needsRehash(PREFIX + "lots$abc$def"))
+                throw new AssertionError("No rehash for a mangled row");
+            if (!new LegacySha256Hasher().needsRehash(new LegacySha256Hasher().hash("hunter2")))
+                throw new AssertionError("Legacy row not marked for rehash");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testLegacyVerify() {
+        System.out.print("[TEST] legacy SHA-256 row verifies ... ");
+
+        try {
+            LegacySha256Hasher legacy = new LegacySha256Hasher();
+            // what the old server wrote for "password"
+            String stored = "5e884898da28047151d0e56f8dc6292773603d0d6aabbdd62a11ef721d1542d8";
+
+            if (!legacy.verify("password", stored))
+                throw new AssertionError("Old row rejected");
+            if (!legacy.verify("password", stored.toUpperCase()))
+                throw new AssertionError("Upper case hex rejected");
+            if (legacy.verify("Password", stored))
+                throw new AssertionError("Wrong password accepted");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -33,7 +33,7 @@ public class PermissionManager {
         try (FileInputStream fis = new FileInputStream("permissions.properties")) {
             permProps.load(fis);
             for (String key : permProps.stringPropertyNames()) {
-                String[] parts = key.split("\\.");
+                String[] parts = key.split("\\.", 2); // "100.command.stats" -> 100, command.stats
                 if (parts.length != 2) continue;
 
                 int level = Integer.parseInt(parts[0]);
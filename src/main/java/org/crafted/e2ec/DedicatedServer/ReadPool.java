@@ -0,0 +1,130 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReadPool {
+// a few read-only connections to chat.db for lookups (login, getUser, history)
+// one sqlite connection only runs one statement at a time, so with a pool a
+// burst of logins runs side by side instead of queueing on a single connection.
+// chat.db is in WAL mode so readers don't wait for the DbWriter either
+
+    public interface Read<T> {
+        // runs with a connection borrowed from the pool
+        T run(Reader reader) throws SQLException;
+    }
+
+    public static class Reader {
+        // one pooled connection plus the statements already prepared on it
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Reader(Connection conn) {
+            this.conn = conn;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            // prepared once per connection, reused after that
+            // input : sql text (used as the cache key)
+            // output: statement with its parameters cleared
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+    }
+
+    private final BlockingQueue<Reader> idle;
+    private final int size;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ReadPool(String dbPath, int size) throws SQLException {
+        // open the read-only connections
+        // input : path to database file, number of connections
+        // output: none
+        this.size = size;
+        idle = new ArrayBlockingQueue<>(size);
+
+        Properties props = new Properties();
+        props.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        for (int i = 0; i < size; i++) {
+            idle.add(new Reader(DriverManager.getConnection("jdbc:sqlite:" + dbPath, props)));
+        }
+    }
+
+    public <T> T read(Read<T> work) throws SQLException {
+        // borrow a connection, run the work, give it back
+        // input : work to run
+        // output: whatever the work returns
+        long start = System.nanoTime();
+        Reader reader;
+        try {
+            reader = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for a read connection", e);
+        }
+        long waited = System.nanoTime() - start;
+
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        inUse.incrementAndGet();
+        try {
+            return work.run(reader);
+        } finally {
+            inUse.decrementAndGet();
+            idle.add(reader);
+        }
+    }
+
+    /* ---------- metrics ---------- */
+
+    public Stats stats() {
+        return new Stats(size, inUse.get(), borrows.get(), waitNanos.get(), maxWaitNanos.get());
+    }
+
+    public static class Stats {
+        // snapshot of the pool counters
+        public final int size;
+        public final int inUse;
+        public final long borrows;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+
+        Stats(int size, int inUse, long borrows, long totalWaitNanos, long maxWaitNanos) {
+            this.size = size;
+            this.inUse = inUse;
+            this.borrows = borrows;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public double avgWaitMillis() {
+            return borrows == 0 ? 0 : totalWaitNanos / 1e6 / borrows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read pool: %d/%d in use, %d lookups, avg wait %.3f ms, max wait %.3f ms",
+                    inUse, size, borrows, avgWaitMillis(), maxWaitNanos / 1e6);
+        }
+    }
+}
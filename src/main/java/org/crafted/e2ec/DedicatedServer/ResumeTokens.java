@@ -0,0 +1,351 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class ResumeTokens {
+// tokens that let a dropped client log back in without its password
+// a token is "<payload>.<signature>", both base64url. the payload holds the
+// username, the room the client was in, when the token was issued and when it
+// runs out, the signature is an HMAC over it with a key only the server has.
+// nothing is stored per token, so tokens survive a restart as long as
+// resume.key does, which is exactly when a whole room of clients comes back at once.
+// /quit revokes: every token the user was issued up to then stops working.
+// that's one time per user, kept in resume.revoked so it survives restarts too
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    private final Path revokedFile; // null keeps revocations in memory only
+    private final Map<String, Long> revokedUpTo = new ConcurrentHashMap<>(); // username -> millis
+
+    public record Claims(String username, String room) {}
+
+    public ResumeTokens(byte[] key, long ttlSeconds, Path revokedFile) {
+        // input : HMAC key, how long a token stays good, where revocations are kept
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.ttlSeconds = ttlSeconds;
+        this.revokedFile = revokedFile;
+        if (revokedFile != null) loadRevoked();
+    }
+
+    static byte[] loadOrCreateKey(Path file) throws IOException {
+        // the signing key, made up on first start and kept so tokens outlive restarts
+        // anyone who can read it can log in as anyone, so only the owner may
+        // input : key file
+        // output: 32 byte key
+        if (Files.exists(file)) {
+            restrict(file);
+            return Base64.getDecoder().decode(Files.readString(file).trim());
+        }
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file); // not POSIX (Windows), it gets the folder's ACL
+        }
+        Files.writeString(file, Base64.getEncoder().encodeToString(key) + "\n", StandardOpenOption.TRUNCATE_EXISTING);
+        System.out.println("Generated " + file);
+        return key;
+    }
+
+    private static void restrict(Path file) {
+        // a key file made before it was created owner-only, or copied in loosely
+        try {
+            if (!Files.getPosixFilePermissions(file).equals(OWNER_ONLY)) {
+                Files.setPosixFilePermissions(file, OWNER_ONLY);
+                System.out.println("Made " + file + " readable by its owner only");
+            }
+        } catch (UnsupportedOperationException ignored) {
+            // not POSIX
+        } catch (IOException e) {
+            System.out.println("Could not restrict " + file + ": " + e.getMessage());
+        }
+    }
+
+    public boolean enabled() {
+        return ttlSeconds > 0;
+    }
+
+    public String issue(String username, Room room) {
+        // input : logged in user, their room (null if none)
+        // output: token
+        long now = System.currentTimeMillis();
+        long expires = now / 1000 + ttlSeconds;
+        String payload = username + "\n" + (room == null ? "" : room.getName()) + "\n" + now + "\n" + expires;
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(sign(bytes));
+    }
+
+    public Claims verify(String token) {
+        // input : token as the client sent it
+        // output: what it says, null if it's forged, malformed, expired or revoked
+        int dot = token.indexOf('.');
+        if (dot < 0) return null;
+
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) return null;
+
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\n", -1);
+        if (parts.length != 4) return null;
+        try {
+            if (Long.parseLong(parts[3]) < System.currentTimeMillis() / 1000) return null;
+            Long revoked = revokedUpTo.get(parts[0]);
+            if (revoked != null && Long.parseLong(parts[2]) <= revoked) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new Claims(parts[0], parts[1].isEmpty() ? null : parts[1]);
+    }
+
+    public void revoke(String username) {
+        // every token issued to username so far stops working (the user quit)
+        // input : username
+        // output: none
+        long now = System.currentTimeMillis();
+        revokedUpTo.merge(username, now, Math::max);
+        if (revokedFile == null) return;
+        try {
+            Files.writeString(revokedFile, username + " " + now + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Could not write " + revokedFile + ": " + e.getMessage());
+        }
+    }
+
+    private void loadRevoked() {
+        // reads resume.revoked and writes it back without the entries every
+        // token they cover has expired past, so it stays about one line per recent /quit
+        if (!Files.exists(revokedFile)) return;
+        long cutoff = System.currentTimeMillis() - ttlSeconds * 1000;
+        try {
+            for (String line : Files.readAllLines(revokedFile, StandardCharsets.UTF_8)) {
+                int space = line.lastIndexOf(' ');
+                if (space <= 0) continue;
+                try {
+                    long at = Long.parseLong(line.substring(space + 1));
+                    if (at >= cutoff) revokedUpTo.merge(line.substring(0, space), at, Math::max);
+                } catch (NumberFormatException ignored) {
+                    // torn line from a crash
+                }
+            }
+            List<String> kept = new ArrayList<>();
+            revokedUpTo.forEach((user, at) -> kept.add(user + " " + at));
+            Files.write(revokedFile, kept, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Could not read " + revokedFile + ": " + e.getMessage());
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    public static void runAllTests() {
+        System.out.println("ResumeTokens tests");
+
+        int passed = 0;
+        int failed = 0;
+
+        if (testValidToken()) passed++; else failed++;
+        if (testForgedToken()) passed++; else failed++;
+        if (testExpiredToken()) passed++; else failed++;
+        if (testRevokedToken()) passed++; else failed++;
+        if (testMalformedToken()) passed++; else failed++;
+
+        System.out.println();
+        System.out.println("test summary");
+        System.out.println("Passed: " + passed);
+        System.out.println("Failed: " + failed);
+    }
+    private static byte[] testKey(int seed) {
+        byte[] key = new byte[32];
+        java.util.Arrays.fill(key, (byte) seed);
+        return key;
+    }
+    private static boolean testValidToken() {
+        System.out.print("[TEST] issued token verifies ... ");
+
+        try {
+            ResumeTokens tokens = new ResumeTokens(testKey(1), 3600, null);
+            Claims claims = tokens.verify(tokens.issue("alice", null));
+
+            if (claims == null)
+                throw new AssertionError("Fresh token rejected");
+            if (!claims.username().equals("alice") || claims.room() != null)
+                throw new AssertionError("Wrong claims " + claims);
+
+            // a server restarted with the same key still takes it
+            String token = tokens.issue("bob", null);
+            if (new ResumeTokens(testKey(1), 3600, null).verify(token) == null)
+                throw new AssertionError("Token rejected after restart");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testForgedToken() {
+        System.out.print("[TEST] forged token is rejected ... ");
+
+        try {
+            ResumeTokens tokens = new ResumeTokens(testKey(1), 3600, null);
+            String token = tokens.issue("alice", null);
+            String signature = token.substring(token.indexOf('.') + 1);
+
+            // someone else's key
+            if (tokens.verify(new ResumeTokens(testKey(2), 3600, null).issue("alice", null)) != null)
+                throw new AssertionError("Token from another key accepted");
+
+            // our signature on a payload naming someone else
+            String payload = "admin\n\n" + System.currentTimeMillis() + "\n" + (System.currentTimeMillis() / 1000 + 3600);
+            String swapped = ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + "." + signature;
+            if (tokens.verify(swapped) != null)
+                throw new AssertionError("Payload with a borrowed signature accepted");
+
+            // one changed signature character (not the last, its low bits are padding)
+            int at = token.indexOf('.') + 1;
+            String flipped = token.substring(0, at) + (token.charAt(at) == 'A' ? 'B' : 'A') + token.substring(at + 1);
+            if (tokens.verify(flipped) != null)
+                throw new AssertionError("Altered signature accepted");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testExpiredToken() {
+        System.out.print("[TEST] expired token is rejected ... ");
+
+        try {
+            // a negative ttl hands out tokens that ran out a second ago
+            ResumeTokens expired = new ResumeTokens(testKey(1), -1, null);
+            if (expired.verify(expired.issue("alice", null)) != null)
+                throw new AssertionError("Expired token accepted");
+
+            // the expiry is signed, it can't be checked with a longer ttl either
+            ResumeTokens longer = new ResumeTokens(testKey(1), 3600, null);
+            if (longer.verify(expired.issue("alice", null)) != null)
+                throw new AssertionError("Expired token accepted by a server with a longer ttl");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testRevokedToken() {
+        System.out.print("[TEST] /quit revokes earlier tokens, also after a restart ... ");
+
+        try {
+            Path dir = Files.createTempDirectory("e2ec-resume");
+            Path revoked = dir.resolve("resume.revoked");
+            ResumeTokens tokens = new ResumeTokens(testKey(1), 3600, revoked);
+
+            String before = tokens.issue("alice", null);
+            String other = tokens.issue("bob", null);
+            tokens.revoke("alice");
+            Thread.sleep(5); // issue times are in millis, step past the revocation
+
+            if (tokens.verify(before) != null)
+                throw new AssertionError("Revoked token accepted");
+            if (tokens.verify(other) == null)
+                throw new AssertionError("Another user's token revoked");
+
+            String after = tokens.issue("alice", null);
+            if (tokens.verify(after) == null)
+                throw new AssertionError("Token issued after the revocation rejected");
+
+            ResumeTokens restarted = new ResumeTokens(testKey(1), 3600, revoked);
+            if (restarted.verify(before) != null)
+                throw new AssertionError("Revocation lost on restart");
+            if (restarted.verify(after) == null)
+                throw new AssertionError("Newer token rejected after restart");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testMalformedToken() {
+        System.out.print("[TEST] malformed tokens are rejected ... ");
+
+        try {
+            ResumeTokens tokens = new ResumeTokens(testKey(1), 3600, null);
+            String token = tokens.issue("alice", null);
+
+            String[] bad = {
+                    "",
+                    "no-dot-here",
+                    ".",
+                    token.substring(0, token.indexOf('.')),   // payload, no signature
+                    token.replace('.', '!'),
+                    "not base64!." + token.substring(token.indexOf('.') + 1),
+            };
+            for (String b : bad) {
+                if (tokens.verify(b) != null)
+                    throw new AssertionError("Accepted \"" + b + "\"");
+            }
+
+            // validly signed but not four fields, or not numbers
+            for (String payload : new String[] { "alice", "alice\n\nnow\nlater", "alice\n\n1\n2\n3" }) {
+                byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+                String signed = ENCODER.encodeToString(bytes) + "." + ENCODER.encodeToString(tokens.sign(bytes));
+                if (tokens.verify(signed) != null)
+                    throw new AssertionError("Accepted payload \"" + payload + "\"");
+            }
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+}
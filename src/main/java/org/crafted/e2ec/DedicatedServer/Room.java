@@ -8,18 +8,24 @@ import java.util.HashSet;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Room {
 
+    // guards rooms.properties
+    private static final ReentrantLock FILE_LOCK = new ReentrantLock();
+
     private final String name;
     private final Set<RoomMember> members = ConcurrentHashMap.newKeySet();
 
     private final Set<Integer> viewingAllowed;
     private final Set<Integer> chattingAllowed;
+    private final int[] viewingLevels; // viewingAllowed unboxed, for broadcastall fan-out
 
     private final boolean saveHistory;
     private final boolean broadcastAll;
     private final boolean tagMessagesWithRoom;
+    private final Metrics.Counter messages; // chat lines sent in here
 
     public Room(
         String name,
@@ -32,9 +38,12 @@ public class Room {
         this.name = name;
         this.viewingAllowed = viewingAllowed;
         this.chattingAllowed = chattingAllowed;
+        this.viewingLevels = viewingAllowed == null ? new int[0]
+                : viewingAllowed.stream().mapToInt(Integer::intValue).toArray();
         this.saveHistory = saveHistory;
         this.broadcastAll = broadcastAll;
         this.tagMessagesWithRoom = tagMessagesWithRoom;
+        this.messages = Server.metrics.counter("room." + name + ".messages");
     }
     /*---------- getters ----------*/
     public String getName() {
@@ -49,6 +58,11 @@ public class Room {
         return viewingAllowed != null && viewingAllowed.contains(permissionLevel);
     }
 
+    public int[] getViewingLevels() {
+        // permission levels allowed to view, don't modify the array
+        return viewingLevels;
+    }
+
     public boolean canChat(int permissionLevel) {
         return chattingAllowed != null && chattingAllowed.contains(permissionLevel);
     }
@@ -65,6 +79,10 @@ public class Room {
         return saveHistory;
     }
 
+    Metrics.Counter getMessageCounter() {
+        return messages;
+    }
+
     /* ---------- helpers ---------- */
 
     public static Set<Integer> parsePermissionList(String raw) {
@@ -98,10 +116,13 @@ public class Room {
         return sb.toString();
     }
 
-    static synchronized void saveRoomToProperties(Room room) {
+    static void saveRoomToProperties(Room room) {
         // saves the room configuration to rooms.properties
         // input : Room object
         // output: none (writes to file)
+        // uses a lock instead of synchronized so virtual threads doing file I/O
+        // in here don't pin their carrier thread
+        FILE_LOCK.lock();
         try {
             File file = new File("rooms.properties");
             Properties props = new Properties();
@@ -133,6 +154,8 @@ public class Room {
 
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            FILE_LOCK.unlock();
         }
     }
 
@@ -142,8 +165,25 @@ public class Room {
         // sends a message to all members in the room
         // input : message string
         // output: none
+        broadcastRaw(Outgoing.event(message));
+    }
+
+    void broadcastRaw(Outgoing message) {
+        // same as broadcast, but with a message built by the caller
+        // that every member shares, so it is encoded once per wire format
+        // input : message
+        // output: none
+        JfrEvents.RoomBroadcast event = new JfrEvents.RoomBroadcast();
+        event.begin();
+        int recipients = 0;
         for (RoomMember m : members) {
-            m.send(message);
+            m.sendRaw(message);
+            recipients++;
+        }
+        if (event.shouldCommit()) {
+            event.room = name;
+            event.recipients = recipients;
+            event.commit();
         }
     }
 
@@ -153,6 +193,7 @@ public class Room {
         // output: none
         members.add(m);
         broadcast(m.getUsername() + " joined the room.");
+        Server.roomWatch.changed(this);
     }
 
     void removeMember(RoomMember m) {
@@ -161,5 +202,6 @@ public class Room {
         // output: none
         members.remove(m);
         broadcast(m.getUsername() + " left the room.");
+        Server.roomWatch.changed(this);
     }
 }
@@ -1,9 +1,12 @@
 package org.crafted.e2ec.DedicatedServer;
+
 // Represents a member of a chat room
 // sorta like ClientSession, maybe?
 // i dunno
 public interface RoomMember {
     void send(String message);
+    // message shared by everyone in a broadcast
+    void sendRaw(Outgoing message);
     String getUsername();
     int getPermissionLevel();
 }
\ No newline at end of file
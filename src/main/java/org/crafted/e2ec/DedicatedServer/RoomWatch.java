@@ -0,0 +1,94 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.crafted.e2ec.Protocol.Frame;
+
+public class RoomWatch {
+// sessions sitting in the room browser (/rooms watch) and the rooms that
+// changed since they were last told. a change only marks the room, a timer
+// sends the marked rooms once per interval, so a room people keep joining
+// and leaving costs one line per watcher per interval however busy it is.
+// the lines are the same " - " lines /rooms sends, clients update by room name
+
+    private final Set<ClientSession> watchers = ConcurrentHashMap.newKeySet();
+    private final Set<Room> dirty = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService timer;
+
+    public void start(long intervalMs) {
+        // starts pushing changes
+        // input : how long changes are gathered before they go out
+        // output: none
+        timer = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("room-watch").daemon().factory());
+        timer.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void watch(ClientSession session) {
+        // session wants room changes pushed, it fetches the full list itself
+        watchers.add(session);
+    }
+
+    public void unwatch(ClientSession session) {
+        watchers.remove(session);
+    }
+
+    public void changed(Room room) {
+        // a room was created or its member count changed
+        // input : the room
+        // output: none
+        if (!watchers.isEmpty()) dirty.add(room);
+    }
+
+    void flush() {
+        // sends every marked room to the watchers that can see it
+        // one line per room and permission level, shared by everyone on that level
+        if (dirty.isEmpty()) return;
+
+        List<Room> changed = new ArrayList<>(dirty.size());
+        for (Room room : dirty) {
+            if (dirty.remove(room)) changed.add(room);
+        }
+
+        try {
+            for (Room room : changed) {
+                Map<Integer, Outgoing> lines = new HashMap<>();
+                for (ClientSession s : watchers) {
+                    int level = s.getPermissionLevel();
+                    if (!room.canView(level)) continue;
+
+                    if (room == s.getCurrentRoom()) {
+                        s.send(roomLine(room, level, true));
+                    } else {
+                        s.send(lines.computeIfAbsent(level, l -> roomLine(room, l, false)));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // keep the timer alive
+        }
+    }
+
+    static Outgoing roomLine(Room room, int level, boolean current) {
+        // one room as /rooms lists it
+        // input : room, permission level of whoever gets it, whether they're in it
+        // output: " - name (n users) (chat ✓)" line, or the same without " - " as a ROOM_LIST frame
+        StringBuilder line = new StringBuilder(room.getName());
+        line.append(" (").append(room.getMemberCount()).append(" users)");
+        line.append(" (").append(room.canChat(level) ? "chat ✓" : "view only").append(")");
+        if (current) line.append(" [current]");
+
+        return Outgoing.of(Frame.ROOM_LIST, " - " + line, line.toString());
+    }
+
+    public int getWatcherCount() {
+        return watchers.size();
+    }
+}
@@ -7,23 +7,72 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 
     // All connected sessions
     static final Set<ClientSession> clients = ConcurrentHashMap.newKeySet();
     static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // logged in sessions bucketed by permission level
+    // broadcastall rooms only walk the buckets they allow instead of every client
+    static final ConcurrentHashMap<Integer, Set<ClientSession>> clientsByLevel = new ConcurrentHashMap<>();
+    // logged in sessions by (case-folded) username
+    static final OnlineDirectory online = new OnlineDirectory();
+    // sessions in the room browser, pushed room changes instead of polling /rooms
+    static final RoomWatch roomWatch = new RoomWatch();
+    // counters and latency histograms, see /stats
+    static final Metrics metrics = new Metrics();
+    private static final Metrics.Counter ACCEPTED = metrics.counter("connections.accepted");
 
     static String HOST_PASSWORD;
     static int PORT;
     static String BIND_IP;
     static String CHAT_NAME;
     static String OWNER_USERNAME;
+    static String TRANSPORT;   // "blocking" (thread per client) or "nio" (selector)
+    static int NIO_WORKERS;
+    static String EXECUTOR;    // "platform" or "virtual"
+    static int OUTBOUND_QUEUE_SIZE;
+    static OutboundQueue.OverflowPolicy OUTBOUND_OVERFLOW;
 
+    static ExecutorService sessionExecutor;
+
+    static DbWriter dbWriter;
+    static ReadPool readPool;
     static UserManager userManager;
+    static HistoryStore historyStore;
+    static int HISTORY_REPLAY;  // lines replayed on /join for savehistory rooms
+    static String DB_PROFILE;   // "fast" (synchronous=NORMAL) or "safe" (synchronous=FULL)
+    static long DB_FLUSH_MS;    // how long the db writer gathers writes into one transaction
+    static int DB_READERS;      // read-only connections for logins and lookups
+    static int USER_CACHE_SIZE; // users kept in memory by UserManager.getUser
+    static long USER_CACHE_TTL; // seconds before a cached user is read again
+    static int HASH_ITERATIONS; // PBKDF2 iterations for new password hashes
+    static int HASH_THREADS;    // threads checking passwords, kept apart from chat delivery
+    static int HASH_QUEUE;      // logins waiting for a hash thread before new ones are turned away
+    static ExecutorService hashPool;
+    static boolean COMPRESSION;   // whether clients may ask for a deflated stream (/compress)
+    static int COMPRESSION_LEVEL; // zlib level, 1 is cheapest on the cpu
+    static long ROOMS_PUSH_MS;    // how long room changes are gathered before watchers get them
+    static long RESUME_TTL;       // seconds a resume token stays good, 0 turns resuming off
+    static ResumeTokens resumeTokens;
+    static long HEARTBEAT_INTERVAL; // seconds of silence before a logged in client is pinged, 0 = never
+    static long IDLE_TIMEOUT;       // seconds of silence before a session that answers pings is dropped, 0 = never
+    static long SILENT_TIMEOUT;     // same for clients that never sent /pong (telnet, old clients), 0 = never
+    static Heartbeats heartbeats;
+    static long METRICS_INTERVAL; // seconds between metrics snapshots (rates, metrics.file)
+    static String METRICS_FILE;   // where each snapshot is written, empty for nowhere
+    static int METRICS_HTTP_PORT; // Prometheus /metrics, 0 = off
+    static String METRICS_HTTP_BIND;
 
     public static void main(String[] args) throws IOException {
         ensureConfigFiles();
@@ -31,14 +80,36 @@ public class Server {
         loadRooms();
 
         PermissionManager.loadPermissions();
+        roomWatch.start(ROOMS_PUSH_MS);
+        resumeTokens = new ResumeTokens(ResumeTokens.loadOrCreateKey(Path.of("resume.key")), RESUME_TTL,
+                Path.of("resume.revoked"));
 
         try {
-            userManager = new UserManager("chat.db");
+            dbWriter = new DbWriter("chat.db", DB_PROFILE, DB_FLUSH_MS);
+            readPool = new ReadPool("chat.db", DB_READERS);
+            hashPool = createHashPool(HASH_THREADS, HASH_QUEUE);
+            userManager = new UserManager(readPool, dbWriter, new UserCache(USER_CACHE_SIZE, USER_CACHE_TTL),
+                    new Pbkdf2Hasher(HASH_ITERATIONS), hashPool);
+            historyStore = new HistoryStore(readPool, dbWriter);
         } catch (Exception e) {
             e.printStackTrace();
             return;
         }
 
+        // runs blocking sessions and every session's outbound writer
+        sessionExecutor = createSessionExecutor(EXECUTOR);
+        heartbeats = new Heartbeats(HEARTBEAT_INTERVAL, IDLE_TIMEOUT, SILENT_TIMEOUT, sessionExecutor);
+        registerGauges();
+        metrics.start(METRICS_INTERVAL, METRICS_FILE.isEmpty() ? null : Path.of(METRICS_FILE));
+        if (METRICS_HTTP_PORT > 0) {
+            new MetricsHttpServer(metrics).start(METRICS_HTTP_BIND, METRICS_HTTP_PORT);
+        }
+
+        if (TRANSPORT.equals("nio")) {
+            new NioServer(BIND_IP, PORT, NIO_WORKERS).run();
+            return;
+        }
+
         ServerSocket serverSocket =
                 new ServerSocket(PORT, 50, java.net.InetAddress.getByName(BIND_IP));
 
@@ -48,30 +119,79 @@ public class Server {
             Socket socket = serverSocket.accept();
 
             // wrap socket in concrete ClientIO
-            ClientIO io = new SocketClientIO(socket);
-
-            // create concrete server facade
-            ServerFacade serverFacade = new ServerFacadeImpl();
+            SocketClientIO io = new SocketClientIO(socket);
 
-            // create session
-            ClientSession session = new ClientSession(io, HOST_PASSWORD, userManager, serverFacade);
+            // create session (client)
+            ClientSession session = newSession(io);
 
-            // add session (client)
-            clients.add(session);
-
-            // start session in new thread
-            new Thread(() -> {
-                // this might be horrible for cpu usage
+            // start session on the session executor
+            // (a thread per client, or a virtual thread per client with executor=virtual)
+            sessionExecutor.execute(() -> {
                 try {
-                    session.start();
+                    session.start(io);
                 } catch (Exception e) {
                     e.printStackTrace();
                 } finally {
-                    serverFacade.removeClient(session);
+                    session.disconnect();
                 }
-            }).start();
+            });
+
+        }
+    }
 
+    static ExecutorService createSessionExecutor(String kind) {
+        // picks how sessions and their writers get threads
+        // input : "virtual" or "platform"
+        // output: executor, a virtual thread per task or a cached platform pool
+        if (kind.equals("virtual")) {
+            return Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("session-", 0).factory());
         }
+        return Executors.newCachedThreadPool(
+                Thread.ofPlatform().name("session-", 0).factory());
+    }
+
+    static ExecutorService createHashPool(int threads, int queueSize) {
+        // fixed pool for password hashing with a bounded queue
+        // a login storm fills this queue instead of eating the session threads,
+        // anything past it is rejected and the login fails
+        // input : number of threads, max logins waiting
+        // output: executor
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                Thread.ofPlatform().name("hash-", 0).daemon().factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    static ClientSession newSession(ClientIO io) {
+        // creates a session for a freshly accepted connection and adds it to the client list
+        // input : ClientIO for the connection
+        // output: the new ClientSession (not started yet)
+        ServerFacade serverFacade = new ServerFacadeImpl();
+        ClientSession session = new ClientSession(io, HOST_PASSWORD, userManager, serverFacade);
+        clients.add(session);
+        ACCEPTED.increment();
+        return session;
+    }
+
+    static void registerGauges() {
+        // values /stats reads off the live server instead of counting them as they change
+        metrics.gauge("connections.open", clients::size);
+        metrics.gauge("connections.logged_in", () -> {
+            long n = 0;
+            for (Set<ClientSession> bucket : clientsByLevel.values()) n += bucket.size();
+            return n;
+        });
+        metrics.gauge("outbound.depth.max", () -> {
+            long max = 0;
+            for (ClientSession s : clients) max = Math.max(max, s.getOutbound().getDepth());
+            return max;
+        });
+        metrics.gauge("outbound.depth.total", () -> {
+            long total = 0;
+            for (ClientSession s : clients) total += s.getOutbound().getDepth();
+            return total;
+        });
     }
 
     /* ================= ROOM & CHAT ================= */
@@ -80,26 +200,62 @@ public class Server {
         // send message to all clients in the room who can view it
         // input : Room object, message string
         // output: none
-        for (RoomMember m : clients) {
-            if (!room.canView(m.getPermissionLevel())) continue;
-            m.send(message);
+        broadcastRoomMessageRaw(room, Outgoing.chat(message));
+    }
+
+    static void broadcastRoomMessageRaw(Room room, Outgoing message) {
+        // same, with one message every recipient shares (and encodes at most once per format)
+        // input : Room object, message
+        // output: none
+        JfrEvents.BroadcastAll event = new JfrEvents.BroadcastAll();
+        event.begin();
+        int recipients = 0;
+        for (int level : room.getViewingLevels()) {
+            Set<ClientSession> bucket = clientsByLevel.get(level);
+            if (bucket == null) continue;
+            for (RoomMember m : bucket) {
+                m.sendRaw(message);
+                recipients++;
+            }
+        }
+        if (event.shouldCommit()) {
+            event.room = room.getName();
+            event.recipients = recipients;
+            event.commit();
         }
     }
 
     static void broadcast(String message, ClientSession sender) {
-        // send message to all connected clients
+        // send message to all logged in clients
+        // (not to ones still in the handshake, they'd take it for a prompt)
         // input : message string, sender ClientSession
         // output: none
-        for (RoomMember m : clients) {
-            m.send(message);
+        Outgoing shared = Outgoing.event(message);
+        for (Set<ClientSession> bucket : clientsByLevel.values()) {
+            for (RoomMember m : bucket) {
+                m.sendRaw(shared);
+            }
         }
     }
 
+    static void clientLoggedIn(ClientSession session) {
+        // files a session under its permission level and name once it has logged in
+        // input : ClientSession object
+        // output: none
+        clientsByLevel.computeIfAbsent(session.getPermissionLevel(), k -> ConcurrentHashMap.newKeySet())
+                .add(session);
+        online.add(session);
+    }
+
     public static void removeClient(ClientSession session) {
         // removes a client from the server
         // input : ClientSession object
         // output: none
         clients.remove(session);
+        Set<ClientSession> bucket = clientsByLevel.get(session.getPermissionLevel());
+        if (bucket != null) bucket.remove(session);
+        online.remove(session);
+        roomWatch.unwatch(session);
         if (session.getCurrentRoom() != null) {
             session.getCurrentRoom().removeMember(session);
         }
@@ -128,6 +284,7 @@ public class Server {
         Room room = new Room(name, viewing, chatting, saveHistory, broadcastAll, tag);
         rooms.put(name, room);
         Room.saveRoomToProperties(room);
+        roomWatch.changed(room);
         return room;
     }
 
@@ -145,6 +302,29 @@ public class Server {
             props.setProperty("port", "5000");
             props.setProperty("owner", "admin");
             props.setProperty("host.password", "secret123");
+            props.setProperty("transport", "blocking");
+            props.setProperty("executor", "platform");
+            props.setProperty("outbound.queue.size", "1024");
+            props.setProperty("outbound.overflow", "coalesce");
+            props.setProperty("history.replay", "50");
+            props.setProperty("db.profile", "fast");
+            props.setProperty("db.flush.ms", "5");
+            props.setProperty("db.readers", "4");
+            props.setProperty("user.cache.size", "10000");
+            props.setProperty("user.cache.ttl.seconds", "300");
+            props.setProperty("hash.iterations", "210000");
+            props.setProperty("hash.queue", "256");
+            props.setProperty("compression", "true");
+            props.setProperty("compression.level", "1");
+            props.setProperty("rooms.push.ms", "1000");
+            props.setProperty("resume.ttl.seconds", "86400");
+            props.setProperty("heartbeat.interval.seconds", "30");
+            props.setProperty("idle.timeout.seconds", "120");
+            props.setProperty("idle.timeout.silent.seconds", "3600");
+            props.setProperty("metrics.interval.seconds", "10");
+            props.setProperty("metrics.file", "metrics.txt");
+            props.setProperty("metrics.http.port", "0"); // e.g. 9464 to let Prometheus scrape /metrics
+            props.setProperty("metrics.http.bind", "127.0.0.1");
 
 
 
@@ -171,6 +351,8 @@ public class Server {
                 0.command.ban=false
                 0.command.unban=false
                 0.command.unmute=false
+                0.command.dbstats=false
+                0.command.stats=false
 
                 100.name=Owner
                 100.uploadfiles=true
@@ -183,6 +365,8 @@ public class Server {
                 100.command.ban=true
                 100.command.unban=true
                 100.command.unmute=true
+                100.command.dbstats=true
+                100.command.stats=true
                 """);
             }
             System.out.println("Generated permissions.properties");
@@ -229,6 +413,33 @@ public class Server {
         PORT = Integer.parseInt(props.getProperty("port", "5000"));
         OWNER_USERNAME = props.getProperty("owner", "admin");
         HOST_PASSWORD = props.getProperty("host.password", "changeme");
+        TRANSPORT = props.getProperty("transport", "blocking").trim().toLowerCase();
+        NIO_WORKERS = Integer.parseInt(props.getProperty("nio.workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        EXECUTOR = props.getProperty("executor", "platform").trim().toLowerCase();
+        OUTBOUND_QUEUE_SIZE = Integer.parseInt(props.getProperty("outbound.queue.size", "1024"));
+        DB_PROFILE = props.getProperty("db.profile", "fast").trim().toLowerCase();
+        DB_FLUSH_MS = Long.parseLong(props.getProperty("db.flush.ms", "5"));
+        DB_READERS = Math.max(1, Integer.parseInt(props.getProperty("db.readers", "4")));
+        USER_CACHE_SIZE = Integer.parseInt(props.getProperty("user.cache.size", "10000"));
+        USER_CACHE_TTL = Long.parseLong(props.getProperty("user.cache.ttl.seconds", "300"));
+        HASH_ITERATIONS = Integer.parseInt(props.getProperty("hash.iterations", "210000"));
+        HASH_THREADS = Math.max(1, Integer.parseInt(props.getProperty("hash.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors() / 2))));
+        HASH_QUEUE = Integer.parseInt(props.getProperty("hash.queue", "256"));
+        HISTORY_REPLAY = Integer.parseInt(props.getProperty("history.replay", "50"));
+        COMPRESSION = Boolean.parseBoolean(props.getProperty("compression", "true"));
+        HEARTBEAT_INTERVAL = Long.parseLong(props.getProperty("heartbeat.interval.seconds", "30"));
+        IDLE_TIMEOUT = Long.parseLong(props.getProperty("idle.timeout.seconds", "120"));
+        SILENT_TIMEOUT = Long.parseLong(props.getProperty("idle.timeout.silent.seconds", "3600"));
+        METRICS_INTERVAL = Math.max(1, Long.parseLong(props.getProperty("metrics.interval.seconds", "10")));
+        METRICS_FILE = props.getProperty("metrics.file", "metrics.txt").trim();
+        METRICS_HTTP_PORT = Integer.parseInt(props.getProperty("metrics.http.port", "0"));
+        METRICS_HTTP_BIND = props.getProperty("metrics.http.bind", "127.0.0.1");
+        RESUME_TTL = Long.parseLong(props.getProperty("resume.ttl.seconds", "86400"));
+        ROOMS_PUSH_MS = Math.max(50, Long.parseLong(props.getProperty("rooms.push.ms", "1000")));
+        COMPRESSION_LEVEL = Math.max(1, Math.min(9, Integer.parseInt(props.getProperty("compression.level", "1"))));
+        OUTBOUND_OVERFLOW = OutboundQueue.OverflowPolicy.parse(props.getProperty("outbound.overflow", "coalesce"));
 
 
         System.out.println("Loaded server.properties:");
@@ -236,6 +447,8 @@ public class Server {
         System.out.println(" Bind IP: " + BIND_IP);
         System.out.println(" Port: " + PORT);
         System.out.println(" Owner: " + OWNER_USERNAME);
+        System.out.println(" Transport: " + TRANSPORT);
+        System.out.println(" Executor: " + EXECUTOR);
     }
 
     static void loadRooms() throws IOException {
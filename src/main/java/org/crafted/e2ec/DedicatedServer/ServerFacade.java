@@ -1,22 +1,61 @@
 package org.crafted.e2ec.DedicatedServer;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 // Facade interface for server operations
 // Provides an abstraction layer over static Server methods
 // haha i am the evil server facade muahahaha
 public interface ServerFacade {
     void broadcastRoomMessage(Room room, String message);
+    void broadcastRoomMessageRaw(Room room, Outgoing message);
     void broadcast(String message, ClientSession sender);
     void removeClient(ClientSession session);
+    // called once a session has logged in or registered
+    void clientLoggedIn(ClientSession session);
     Room getRoom(String name);
     Room createRoom(String name, Set<Integer> viewing, Set<Integer> chatting,
                     boolean saveHistory, boolean broadcastAll, boolean tag);
-    boolean setPermissionLevel(String username, int newLevel);
+    CompletableFuture<Boolean> setPermissionLevel(String username, int newLevel);
+
+    // room history (only rooms with savehistory=true are stored)
+    long saveHistory(Room room, String message);
+    List<HistoryStore.Entry> getHistory(Room room, long beforeId, int limit);
+    // the newest messages after afterId, for clients that already have the older ones
+    List<HistoryStore.Entry> getHistorySince(Room room, long afterId, int limit);
+
+    // counters of the chat.db read connection pool
+    ReadPool.Stats getReadPoolStats();
+
+    // the UserManager user cache, for its counters
+    UserCache getUserCache();
 
     // get a UserManager user by username
     UserManager.User getUser(String username);
 
-    // find a ClientSession by username
+    // find a ClientSession by username (any of them if the user is logged in more than once)
     ClientSession findUser(String username);
 
+    // every session a user is logged in with, empty if offline
+    Set<ClientSession> findUserSessions(String username);
+
+    // online usernames starting with prefix
+    List<String> completeUsername(String prefix, int limit);
+
+    // ping and reaping counters
+    Heartbeats getHeartbeats();
+
+    // counters and histograms for /stats
+    Metrics getMetrics();
+
+    // resume tokens, null from issue when resuming is off or verify when the token is no good
+    String issueResumeToken(String username, Room room);
+    ResumeTokens.Claims verifyResumeToken(String token);
+    // the user quit, none of the tokens they have may log back in
+    void revokeResumeTokens(String username);
+
+    // push room changes to a session until it joins a room or unwatches
+    void watchRooms(ClientSession session);
+    void unwatchRooms(ClientSession session);
+
     
 }
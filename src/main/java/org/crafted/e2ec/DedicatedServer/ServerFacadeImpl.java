@@ -1,6 +1,8 @@
 package org.crafted.e2ec.DedicatedServer;
 
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 // Facade implementation for server operations
 // this is stupid, like entirely.
 // but it makes testing easier, so whatever
@@ -17,6 +19,11 @@ public class ServerFacadeImpl implements ServerFacade {
         Server.removeClient(session); // static call
     }
 
+    @Override
+    public void clientLoggedIn(ClientSession session) {
+        Server.clientLoggedIn(session);
+    }
+
     @Override
     public void broadcast(String message, ClientSession sender) {
         Server.broadcast(message, sender);
@@ -27,6 +34,11 @@ public class ServerFacadeImpl implements ServerFacade {
         Server.broadcastRoomMessage(room, message);
     }
 
+    @Override
+    public void broadcastRoomMessageRaw(Room room, Outgoing message) {
+        Server.broadcastRoomMessageRaw(room, message);
+    }
+
     @Override
     public Room getRoom(String roomName) {
         return Server.getRoom(roomName);
@@ -38,10 +50,35 @@ public class ServerFacadeImpl implements ServerFacade {
         return Server.createRoom(name, viewing, chatting, saveHistory, broadcastAll, tag);
     }
     @Override
-    public boolean setPermissionLevel(String username, int newLevel) {
+    public CompletableFuture<Boolean> setPermissionLevel(String username, int newLevel) {
         return Server.userManager.setPermissionLevel(username, newLevel);
     }
 
+    @Override
+    public long saveHistory(Room room, String message) {
+        return Server.historyStore.save(room.getName(), message);
+    }
+
+    @Override
+    public List<HistoryStore.Entry> getHistory(Room room, long beforeId, int limit) {
+        return Server.historyStore.page(room.getName(), beforeId, limit);
+    }
+
+    @Override
+    public List<HistoryStore.Entry> getHistorySince(Room room, long afterId, int limit) {
+        return Server.historyStore.page(room.getName(), afterId, Long.MAX_VALUE, limit);
+    }
+
+    @Override
+    public ReadPool.Stats getReadPoolStats() {
+        return Server.readPool.stats();
+    }
+
+    @Override
+    public UserCache getUserCache() {
+        return Server.userManager.getCache();
+    }
+
     @Override
     public UserManager.User getUser(String username) {
         return Server.userManager.getUser(username);
@@ -49,10 +86,55 @@ public class ServerFacadeImpl implements ServerFacade {
 
     @Override
     public ClientSession findUser(String username) {
-        for (ClientSession s : Server.clients) {
-            if (username.equalsIgnoreCase(s.getUsername())) return s;
-        }
+        for (ClientSession s : Server.online.find(username)) return s;
         return null;
     }
 
+    @Override
+    public Set<ClientSession> findUserSessions(String username) {
+        return Server.online.find(username);
+    }
+
+    @Override
+    public List<String> completeUsername(String prefix, int limit) {
+        return Server.online.complete(prefix, limit);
+    }
+
+    @Override
+    public Heartbeats getHeartbeats() {
+        return Server.heartbeats;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return Server.metrics;
+    }
+
+    @Override
+    public String issueResumeToken(String username, Room room) {
+        if (!Server.resumeTokens.enabled()) return null;
+        return Server.resumeTokens.issue(username, room);
+    }
+
+    @Override
+    public ResumeTokens.Claims verifyResumeToken(String token) {
+        if (!Server.resumeTokens.enabled()) return null;
+        return Server.resumeTokens.verify(token);
+    }
+
+    @Override
+    public void revokeResumeTokens(String username) {
+        if (Server.resumeTokens.enabled()) Server.resumeTokens.revoke(username);
+    }
+
+    @Override
+    public void watchRooms(ClientSession session) {
+        Server.roomWatch.watch(session);
+    }
+
+    @Override
+    public void unwatchRooms(ClientSession session) {
+        Server.roomWatch.unwatch(session);
+    }
+
 }
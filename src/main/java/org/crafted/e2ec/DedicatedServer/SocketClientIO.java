@@ -1,36 +1,84 @@
 package org.crafted.e2ec.DedicatedServer;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import org.crafted.e2ec.Protocol.Frame;
+import org.crafted.e2ec.Protocol.FrameReader;
 
-public class SocketClientIO implements ClientIO {
+public class SocketClientIO implements BlockingClientIO {
 // wraps a Socket for ClientIO operations
-// uses BufferedReader and PrintWriter for I/O
+// uses a FrameReader for input (lines, or frames once the client asks) and a buffered byte stream for output,
+// lines pile up in the buffer until flush() (or the buffer fills) so a
+// burst of lines goes out in one write instead of one per line
+
+    static final int WRITE_BUFFER_SIZE = 16 * 1024;
 
     private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
+    private final FrameReader in;
+    private volatile boolean frames = false;
+    private final OutputStream out;
+    private final WritableByteChannel outChannel; // same stream, for ByteBuffer payloads
 
     public SocketClientIO(Socket socket) throws IOException {
         this.socket = socket;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-        // toliet flush enabled
+        // we batch writes ourselves now, so don't let Nagle hold the last line back
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true); // dead peers of clients that don't answer pings
+        this.in = new FrameReader(new BufferedInputStream(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        this.outChannel = Channels.newChannel(out);
     }
 
     @Override
     public String readLine() throws IOException {
-        // read a line from the input stream
-        return in.readLine();
+        // read a line from the input stream, or the text of the next frame
+        if (!frames) return in.readLine();
+
+        Frame frame = in.readFrame();
+        if (frame == null) return null;
+        if (frame.type != Frame.INPUT) throw new IOException("unexpected frame type " + frame.type);
+        return frame.payload;
+    }
+
+    @Override
+    public void useFrames() {
+        // only called from the session thread, between two readLine calls
+        frames = true;
     }
 
     @Override
     public void writeLine(String line) {
-        // write a line to the output stream
-        out.println(line);
+        // buffer a line, it goes out on flush() or when the buffer is full
+        try {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        } catch (IOException ignored) {
+            // dead socket, the reader side will notice and disconnect
+        }
+    }
+
+    @Override
+    public void writeRaw(ByteBuffer payload) {
+        // buffer an already encoded line, no re-encoding per recipient
+        // (the channel view copies the bytes into the stream's buffer)
+        try {
+            outChannel.write(payload.duplicate());
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void flush() {
+        // push everything buffered onto the socket in one go
+        try {
+            out.flush();
+        } catch (IOException ignored) {}
     }
 
     @Override
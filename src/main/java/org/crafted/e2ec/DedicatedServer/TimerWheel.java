@@ -0,0 +1,121 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class TimerWheel {
+// one thread and a ring of buckets for the timeouts every session needs
+// (heartbeats, idle checks), instead of a timer or socket timeout per client.
+// scheduling is a queue add and cancelling sets a flag, the wheel thread moves
+// new timeouts into their bucket and expires one bucket per tick. a timeout
+// fires within one tick after its deadline, good enough for seconds-scale checks.
+// expired tasks run on the executor so a slow one (closing a dead socket)
+// never holds up the tick
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // ms since the wheel started
+        private long rounds;         // full turns of the wheel left, wheel thread only
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            // the timeout is dropped when the wheel next reaches its bucket
+            cancelled = true;
+        }
+    }
+
+    private final long tickMs;
+    private final List<Timeout>[] buckets;
+    private final int mask;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long tick = 0; // wheel thread only
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMs, int wheelSize, Executor executor) {
+        // input : tick length, number of buckets (rounded up to a power of two),
+        //         where expired tasks run
+        // output: none (starts the wheel thread)
+        this.tickMs = tickMs;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = (List<Timeout>[]) new List<?>[size]; // no generic arrays, the cast is the unchecked part
+        for (int i = 0; i < size; i++) buckets[i] = new ArrayList<>();
+        this.mask = size - 1;
+        this.executor = executor;
+
+        Thread t = new Thread(this::run, "timer-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public Timeout schedule(long delayMs, Runnable task) {
+        // runs task once, delayMs from now
+        // input : delay, task
+        // output: handle to cancel it with
+        Timeout timeout = new Timeout(task, elapsedMs() + Math.max(0, delayMs));
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private void run() {
+        while (true) {
+            long next = (tick + 1) * tickMs;
+            long sleep = next - elapsedMs();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            placeIncoming();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void placeIncoming() {
+        // moves freshly scheduled timeouts into the bucket of their deadline
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled) continue;
+            long due = Math.max(t.deadline / tickMs, tick); // already late ones go in this tick
+            t.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due & mask)].add(t);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            if (t.cancelled) {
+                it.remove();
+            } else if (t.rounds <= 0) {
+                it.remove();
+                try {
+                    executor.execute(t.task);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else {
+                t.rounds--;
+            }
+        }
+    }
+}
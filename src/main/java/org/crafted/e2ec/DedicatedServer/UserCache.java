@@ -0,0 +1,133 @@
+package org.crafted.e2ec.DedicatedServer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class UserCache {
+// username -> User kept in memory in front of UserManager.getUser
+// least recently used entries are evicted once it is full, and every entry
+// expires after a while so a change made straight in chat.db shows up eventually
+
+    private static class Cached {
+        final UserManager.User user;
+        final long expiresAt; // System.nanoTime()
+        Cached(UserManager.User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+
+    private final ReentrantLock lock = new ReentrantLock(); // guards entries
+    private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long version = 0; // bumped on every invalidate
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public UserCache(int capacity, long ttlSeconds) {
+        // input : max number of users kept, seconds before an entry expires
+        // output: none
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    public UserManager.User get(String username) {
+        // cached user if present and not expired
+        // input : username
+        // output: User or null on a miss
+        lock.lock();
+        try {
+            Cached c = entries.get(username);
+            if (c != null && System.nanoTime() - c.expiresAt < 0) {
+                hits.incrementAndGet();
+                return c.user;
+            }
+            if (c != null) entries.remove(username); // expired
+        } finally {
+            lock.unlock();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public long version() {
+        // take this before reading the database, and hand it to put()
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(UserManager.User user, long seenVersion) {
+        // remember a user loaded from the database, evicting the least recently used if full
+        // if anything was invalidated while it was being read the row may be stale, so skip it
+        // input : user to cache, version() from before the read
+        // output: none
+        if (capacity <= 0) return;
+
+        lock.lock();
+        try {
+            if (version != seenVersion) return;
+            entries.put(user.username, new Cached(user, System.nanoTime() + ttlNanos));
+
+            Iterator<Map.Entry<String, Cached>> it = entries.entrySet().iterator();
+            while (entries.size() > capacity && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String username) {
+        // drop a user whose row just changed
+        lock.lock();
+        try {
+            version++;
+            entries.remove(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ---------- counters ---------- */
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "user cache: " + size() + "/" + capacity + " users, " + hits.get() + " hits, "
+                + misses.get() + " misses, " + evictions.get() + " evictions";
+    }
+}
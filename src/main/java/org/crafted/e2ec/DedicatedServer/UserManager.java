@@ -1,129 +1,247 @@
 package org.crafted.e2ec.DedicatedServer;
 
-import java.security.MessageDigest;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 
 public class UserManager {
 
-    private Connection conn;
+    private static final Metrics.Histogram GET_USER = Server.metrics.histogram("db.get_user.us");
+    private static final Metrics.Histogram LOGIN_LOOKUP = Server.metrics.histogram("db.login_lookup.us");
+    private static final Metrics.Histogram REGISTER_INSERT = Server.metrics.histogram("db.register_insert.us");
+    private static final Metrics.Histogram SET_PERMISSION = Server.metrics.histogram("db.set_permission.us");
+    private static final Metrics.Histogram LOGIN = Server.metrics.histogram("login.us"); // lookup plus hash check
 
-    public UserManager(String dbPath) throws SQLException {
-        // connect to SQLite database
-        // input : path to database file
+    private final ReadPool readers; // all lookups go through here
+    private final DbWriter writer;  // all writes go through here
+    private final UserCache cache;  // getUser results, dropped whenever a user's row changes
+    private final PasswordHasher hasher;  // new and upgraded passwords
+    private final PasswordHasher legacy = new LegacySha256Hasher(); // rows from before hashing was salted
+    private final Executor hashPool;      // password hashing runs here, never on a session thread
+
+    public UserManager(ReadPool readers, DbWriter writer, UserCache cache,
+                       PasswordHasher hasher, Executor hashPool) throws SQLException {
+        // use the shared connections to chat.db
+        // input : read pool and writer for the database, cache for getUser,
+        //         hasher for passwords and the pool to run it on
         // output: none
-        conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        this.readers = readers;
+        this.writer = writer;
+        this.cache = cache;
+        this.hasher = hasher;
+        this.hashPool = hashPool;
         initialize();
     }
     
     private void initialize() throws SQLException {
         // sql witchcraft
-        // create users table if not exists
-        try (Statement stmt = conn.createStatement()) {
-            stmt.execute("""
-                CREATE TABLE IF NOT EXISTS users (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    username TEXT UNIQUE,
-                    password_hash TEXT,
-                    permission_level INTEGER,
-                    created_at DATETIME DEFAULT CURRENT_TIMESTAMP
-                );
-            """);
+        // create users table if not exists (through the writer like every other write)
+        try {
+            writer.submit(c -> {
+                try (Statement stmt = c.createStatement()) {
+                    stmt.execute("""
+                        CREATE TABLE IF NOT EXISTS users (
+                            id INTEGER PRIMARY KEY AUTOINCREMENT,
+                            username TEXT UNIQUE,
+                            password_hash TEXT,
+                            permission_level INTEGER,
+                            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+                        );
+                    """);
+                }
+                return null;
+            }).join();
+        } catch (CompletionException e) {
+            throw new SQLException("could not create users table", e.getCause());
         }
     }
     public User getUser(String username) {
         // get user by username on the database
         // input: username string
         // output: User object or null if not found
+        User cached = cache.get(username);
+        if (cached != null) return cached;
+
+        long version = cache.version();
         String sql = "SELECT username, permission_level FROM users WHERE username = ?";
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
+        long start = System.nanoTime();
+        JfrEvents.DbQuery event = beginQuery();
+        try {
+            User user = readers.read(r -> {
+                PreparedStatement stmt = r.prepare(sql);
+                stmt.setString(1, username);
 
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) return null;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) return null;
 
-            return new User(
-                rs.getString("username"),
-                rs.getInt("permission_level")
-            );
+                    return new User(
+                        rs.getString("username"),
+                        rs.getInt("permission_level")
+                    );
+                }
+            });
+            GET_USER.recordSince(start);
+            endQuery(event, "getUser", username);
+            if (user != null) cache.put(user, version);
+            return user;
         } catch (SQLException e) {
             e.printStackTrace();
             return null;
         }
     }
-    public boolean setPermissionLevel(String username, int newLevel) {
+    public UserCache getCache() {
+        return cache;
+    }
+    public CompletableFuture<Boolean> setPermissionLevel(String username, int newLevel) {
         // set a user's permission level in the database
         // input: username and new permission level
-        // output: true if successful, false if not
+        // output: future, true if successful, false if not
         String sql = "UPDATE users SET permission_level = ? WHERE username = ?";
 
-         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, newLevel);
-            stmt.setString(2, username);
-
-            return stmt.executeUpdate() == 1;
-        } catch (SQLException e) {
+        cache.invalidate(username);
+        long start = System.nanoTime();
+        JfrEvents.DbQuery event = beginQuery();
+        return writer.submit(c -> {
+            try (PreparedStatement stmt = c.prepareStatement(sql)) {
+                stmt.setInt(1, newLevel);
+                stmt.setString(2, username);
+                return stmt.executeUpdate() == 1;
+            }
+        }).exceptionally(e -> {
             e.printStackTrace();
             return false;
-        }
+        }).whenComplete((ok, e) -> {
+            SET_PERMISSION.recordSince(start);
+            endQuery(event, "setPermissionLevel", username);
+            cache.invalidate(username); // a lookup may have raced the write
+        });
     }
 
-    public boolean register(String username, String password, int level) throws Exception {
+    public CompletableFuture<Boolean> register(String username, String password, int level) {
         // more sql witchcraft
-        // register a new user in the database
+        // register a new user in the database, hashing happens on the hash pool
         // input: username, password, and permission level
-        // output: true if successful, false if username already exists
-        String hash = sha256(password);
+        // output: future, true if successful, false if username already exists (or the pool is full)
         String sql = "INSERT INTO users(username, password_hash, permission_level) VALUES(?,?,?)";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.setString(2, hash);
-            stmt.setInt(3, level);
-            stmt.executeUpdate();
-            return true;
-        } catch (SQLException e) {
-            return false; // username already exists
-        }
+
+        cache.invalidate(username);
+        return onHashPool(() -> hasher.hash(password))
+                .thenCompose(hash -> {
+                    long start = System.nanoTime();
+                    JfrEvents.DbQuery event = beginQuery();
+                    return writer.submit(c -> {
+                        try (PreparedStatement stmt = c.prepareStatement(sql)) {
+                            stmt.setString(1, username);
+                            stmt.setString(2, hash);
+                            stmt.setInt(3, level);
+                            stmt.executeUpdate();
+                            return true;
+                        }
+                    }).whenComplete((ok, e) -> {
+                        REGISTER_INSERT.recordSince(start);
+                        endQuery(event, "register", username);
+                    });
+                })
+                .exceptionally(e -> false); // username already exists
     }
 
-    public User login(String username, String password) throws Exception {
+    public CompletableFuture<User> login(String username, String password) {
         // login a user by checking credentials in the database
+        // the row is looked up here, the (slow on purpose) hash check runs on the hash pool
         // input: username and password
-        // output: User object if successful, null if invalid credentials
-        String hash = sha256(password);
-        String sql = "SELECT * FROM users WHERE username=? AND password_hash=?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, username);
-            stmt.setString(2, hash);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                int level = rs.getInt("permission_level");
-                return new User(username, level);
-            } else {
+        // output: future, User object if successful, null if invalid credentials (or the pool is full)
+        String sql = "SELECT password_hash, permission_level FROM users WHERE username=?";
+
+        long start = System.nanoTime();
+        JfrEvents.DbQuery event = beginQuery();
+        Credentials row;
+        try {
+            row = readers.read(r -> {
+                PreparedStatement stmt = r.prepare(sql);
+                stmt.setString(1, username);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) return null;
+                    return new Credentials(rs.getString("password_hash"), rs.getInt("permission_level"));
+                }
+            });
+            LOGIN_LOOKUP.recordSince(start);
+            endQuery(event, "loginLookup", username);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return onHashPool(() -> {
+            if (row == null) {
+                hasher.hash(password); // same cost as a real check, unknown names don't answer faster
+                return null;
+            }
+
+            String stored = row.passwordHash();
+            PasswordHasher storedWith = hasher.handles(stored) ? hasher
+                    : legacy.handles(stored) ? legacy : null;
+            if (storedWith == null || !storedWith.verify(password, stored)) {
                 return null; // invalid credentials
             }
-        }
+
+            if (storedWith != hasher || hasher.needsRehash(stored)) {
+                rehash(username, stored, password);
+            }
+            return new User(username, row.permissionLevel());
+        }).exceptionally(e -> null).whenComplete((user, e) -> LOGIN.recordSince(start));
+    }
+
+    private void rehash(String username, String oldHash, String password) {
+        // upgrade an old row now that we know the password
+        // its own task on the hash pool so the login answer doesn't wait for it,
+        // if the pool is full it just happens on a later login
+        String sql = "UPDATE users SET password_hash=? WHERE username=? AND password_hash=?";
+
+        onHashPool(() -> hasher.hash(password))
+                .thenCompose(newHash -> writer.submit(c -> {
+                    try (PreparedStatement stmt = c.prepareStatement(sql)) {
+                        stmt.setString(1, newHash);
+                        stmt.setString(2, username);
+                        stmt.setString(3, oldHash); // only if nobody changed it meanwhile
+                        return stmt.executeUpdate();
+                    }
+                }))
+                .exceptionally(e -> 0);
+    }
+
+    private static JfrEvents.DbQuery beginQuery() {
+        JfrEvents.DbQuery event = new JfrEvents.DbQuery();
+        event.begin();
+        return event;
     }
 
-    private String sha256(String input) throws Exception {
-        // hash a string using SHA-256
-        // input: string to hash
-        // output: hashed string in hex format
-        // why is this here? i dont think this is used at all
-        // also why is it here instead of in a utils class?
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] bytes = md.digest(input.getBytes("UTF-8"));
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) sb.append(String.format("%02x", b));
-        return sb.toString();
+    private static void endQuery(JfrEvents.DbQuery event, String operation, String username) {
+        // written only if recording and slower than the threshold in e2ec.jfc
+        if (!event.shouldCommit()) return;
+        event.operation = operation;
+        event.username = username;
+        event.commit();
+    }
+
+    private <T> CompletableFuture<T> onHashPool(Supplier<T> work) {
+        // the hash pool is bounded, a full queue fails the future instead of piling up
+        try {
+            return CompletableFuture.supplyAsync(work, hashPool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
+    private record Credentials(String passwordHash, int permissionLevel) {}
+
     public static class User {
         // simple user data class
         //:thumbs-up:
@@ -134,4 +252,74 @@ public class UserManager {
             this.permissionLevel = level;
         }
     }
+
+    public static void runAllTests() {
+        System.out.println("UserManager tests");
+
+        int passed = 0;
+        int failed = 0;
+
+        if (testLegacyRowUpgraded()) passed++; else failed++;
+
+        System.out.println();
+        System.out.println("test summary");
+        System.out.println("Passed: " + passed);
+        System.out.println("Failed: " + failed);
+    }
+    private static boolean testLegacyRowUpgraded() {
+        System.out.print("[TEST] legacy SHA-256 row logs in and is rehashed ... ");
+
+        try {
+            String db = java.nio.file.Files.createTempDirectory("e2ec-users").resolve("chat.db").toString();
+            DbWriter writer = new DbWriter(db, "fast", 0);
+            writer.submit(c -> null).join(); // creates the file before the read-only connections open it
+            ReadPool readers = new ReadPool(db, 1);
+            Pbkdf2Hasher hasher = new Pbkdf2Hasher(1000);
+            UserManager users = new UserManager(readers, writer, new UserCache(16, 60), hasher, Runnable::run);
+
+            String old = new LegacySha256Hasher().hash("hunter2");
+            writer.submit(c -> {
+                try (PreparedStatement stmt = c.prepareStatement(
+                        "INSERT INTO users (username, password_hash, permission_level) VALUES (?, ?, 1)")) {
+                    stmt.setString(1, "oldtimer");
+                    stmt.setString(2, old);
+                    return stmt.executeUpdate();
+                }
+            }).join();
+
+            if (users.login("oldtimer", "wrong").join() != null)
+                throw new AssertionError("Wrong password accepted");
+            User user = users.login("oldtimer", "hunter2").join();
+            if (user == null || user.permissionLevel != 1)
+                throw new AssertionError("Legacy row rejected");
+
+            // the rewrite goes through the writer, give it a moment
+            String stored = old;
+            for (int i = 0; i < 50 && stored.equals(old); i++) {
+                Thread.sleep(100);
+                stored = readers.read(r -> {
+                    PreparedStatement stmt = r.prepare("SELECT password_hash FROM users WHERE username=?");
+                    stmt.setString(1, "oldtimer");
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                        return rs.getString(1);
+                    }
+                });
+            }
+            if (!hasher.handles(stored))
+                throw new AssertionError("Row not upgraded: " + stored);
+
+            if (users.login("oldtimer", "hunter2").join() == null)
+                throw new AssertionError("Upgraded row rejected");
+            if (users.login("oldtimer", "wrong").join() != null)
+                throw new AssertionError("Wrong password accepted after the upgrade");
+
+            System.out.println("PASS");
+            return true;
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
 }
@@ -1,18 +1,30 @@
 package org.crafted.e2ec.E2client;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.InflaterInputStream;
 
 import javax.swing.SwingUtilities;
 
+import org.crafted.e2ec.Protocol.Frame;
+import org.crafted.e2ec.Protocol.FrameReader;
+import org.crafted.e2ec.Protocol.FrameWriter;
+
 
 public class ChatClient {
 
     private PrintWriter out;
-    private BufferedReader in;
+    private FrameReader in;
+    private BufferedInputStream rawIn; // socket bytes under in, an inflater goes on top once compressed
+    private FrameWriter frames; // under out, switches it to frames once the server agrees
+    private volatile boolean binary = false;
 
     private String chatName;
     private String address;
@@ -22,6 +34,25 @@ public class ChatClient {
 
     private volatile boolean inRoom = false;
 
+    // reconnecting after a drop: wait a random time up to base * 2^attempt (capped), then retry
+    static final long RECONNECT_BASE_MS = 500;
+    static final long RECONNECT_MAX_MS = 30_000;
+    static final int RECONNECT_ATTEMPTS = 10;
+    private volatile String resumeToken;  // latest one the server gave us, see /resume
+    private String hostPassword;          // what we answered the host password prompt with
+    private ChatManagerWindow.ChatEntry entry; // saved credentials, null if typed into dialogs
+    private volatile boolean quitting = false; // we asked to leave, don't reconnect
+    private String shownRoom;             // room whose cached lines are in the window, reader thread only
+
+    // saved lines per room on disk, only with a binary server (lines need their ids)
+    static final Path CACHE_DIR = Path.of("cache");
+    private MessageCache cache;
+    private MessageCache.RoomLog roomLog; // room we're in, reader thread only
+
+    // window switches and chat lines waiting for the EDT, see postUi
+    private final ConcurrentLinkedQueue<Object> uiQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean uiScheduled = new AtomicBoolean(false);
+
     /* ===================== ENTRY ===================== */
 
     public void start() throws Exception {
@@ -31,6 +62,11 @@ public class ChatClient {
 
         connect(address);
         handleHandshake(new DialogHandshakeProvider());
+        negotiateBinary();
+        negotiateCompression();
+        openCache(address);
+        requestResumeToken();
+        announceHeartbeats();
 
         showRoomBrowser();
         startReaderThread();
@@ -51,8 +87,16 @@ public class ChatClient {
         int port = Integer.parseInt(parts[1].trim());
 
         socket = new Socket(host, port);  // SAVE the socket
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        binary = false;
+        if (frames == null) {
+            frames = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()));
+            out = new PrintWriter(frames, true);
+        } else {
+            // reconnecting: the windows keep writing to the same out
+            frames.reset(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        rawIn = new BufferedInputStream(socket.getInputStream());
+        in = new FrameReader(rawIn);
     }
 
 
@@ -60,7 +104,7 @@ public class ChatClient {
     public interface HandshakeProvider {
         // provides responses to server prompts during handshake
         // input: server prompt string
-        // output: client response string
+        // output: client response string, null if the line needs no answer
         String respond(String serverPrompt) throws Exception;
     }
     public class DialogHandshakeProvider implements HandshakeProvider {
@@ -84,7 +128,7 @@ public class ChatClient {
             return response;
         }
     }
-    public class SavedHandshakeProvider implements HandshakeProvider {
+    public static class SavedHandshakeProvider implements HandshakeProvider {
         // uses saved credentials from a ChatEntry to respond to server prompts
         // input: ChatEntry with saved credentials
         // output: client response string based on prompts
@@ -100,7 +144,7 @@ public class ChatClient {
         public String respond(String serverPrompt) throws Exception {
             // respond to server prompts using saved credentials
             // input: server prompt string
-            // output: client response string
+            // output: client response string, null if the line needs no answer
             String p = serverPrompt.toLowerCase();
 
             // Host password prompt
@@ -142,6 +186,11 @@ public class ChatClient {
                 return ""; // continue handshake
             }
 
+            // comes right behind "Login failed.", which we already answered
+            if (p.equals("invalid option.") && loginAttempted) {
+                return null;
+            }
+
             throw new IOException("Unhandled server prompt: " + serverPrompt);
         }
     }
@@ -152,30 +201,230 @@ public class ChatClient {
         // handle the handshake process with the server using the provided HandshakeProvider
         // input: HandshakeProvider to get responses for server prompts
         // output: none (completes handshake and sets chatName)
+        chatName = handshake(in, out, serverLine -> {
+            String response = provider.respond(serverLine);
+            String p = serverLine.toLowerCase();
+            if (response != null && p.contains("host") && p.contains("password")) hostPassword = response.trim();
+            return response;
+        }, true);
+    }
+
+    static String handshake(FrameReader in, PrintWriter out, HandshakeProvider provider, boolean log)
+            throws Exception {
+        // the prompt/answer loop up to "OK: Logged in", without any window
+        // (LoadGenerator runs thousands of these)
+        // input: connection streams, who answers the prompts, whether to print the exchange
+        // output: the chat name the server sent on login
         while (true) {
             String serverLine = in.readLine();
             if (serverLine == null)
                 throw new IOException("Disconnected during login.");
 
-            if (serverLine.startsWith("OK: Logged in")) {
-                chatName = serverLine.substring(serverLine.indexOf("j") + 1);
-                break;
+            if (serverLine.startsWith("OK: Logged inj")) {
+                return serverLine.substring("OK: Logged inj".length());
             }
 
-            System.out.println("[SERVER] " + serverLine);
+            if (log) System.out.println("[SERVER] " + serverLine);
             String response = provider.respond(serverLine);
-            System.out.println("[CLIENT] " + response);
+            if (response == null) continue; // nothing to answer to this line
+            if (log) System.out.println("[CLIENT] " + response);
             out.println(response.trim());
+        }
+    }
+
+
+    private void negotiateBinary() throws IOException {
+        // ask for binary frames, right after login before any window can send anything
+        // the server switches its reader as soon as it answers, so nothing else
+        // may go out until we've read the answer. servers without it say
+        // "Unknown command." and we just stay on text
+        // output: none (binary is set if the server agreed)
+        out.println(Frame.NEGOTIATE);
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(Frame.ACCEPTED)) {
+                frames.useFrames();
+                binary = true;
+                return;
+            }
+            if (line.equals("Unknown command.")) return;
+            System.out.println("[SERVER] " + line); // join notices etc., no window to show them yet
+        }
+        throw new IOException("Disconnected during login.");
+    }
+
+    private void negotiateCompression() throws IOException {
+        // ask for a deflated stream, helps a lot on slow links (history, busy rooms)
+        // the server sends its answer uncompressed and deflates everything after
+        // it, so the inflater goes in right behind the answer. rawIn is byte
+        // buffered only, whatever it already holds is the start of the deflate stream
+        // output: none (in reads through an inflater if the server agreed)
+        out.println(Frame.COMPRESS);
+
+        String line;
+        while ((line = nextSystemLine()) != null) {
+            if (line.equals(Frame.COMPRESS_ACCEPTED)) {
+                in = new FrameReader(new BufferedInputStream(new InflaterInputStream(rawIn)));
+                return;
+            }
+            if (line.equals(Frame.COMPRESS_DECLINED) || line.equals("Unknown command.")) return;
+            System.out.println("[SERVER] " + line);
+        }
+        throw new IOException("Disconnected during login.");
+    }
+
+    private String nextSystemLine() throws IOException {
+        // next line while nothing is shown yet, whatever format we're on
+        // output: line text or frame payload, null at end of stream
+        if (!binary) return in.readLine();
+
+        Frame frame = in.readFrame();
+        return frame == null ? null : frame.payload;
+    }
+
+    private void requestResumeToken() {
+        // ask for a token to log back in with after a drop, the answer (and a
+        // fresh one on every room change) is picked up by the reader thread.
+        // older servers say "Unknown command.", which nothing shows
+        out.println("/resume");
+    }
+
+    private void announceHeartbeats() {
+        // one /pong up front tells the server we answer PINGs, only then does it
+        // ping us (and drop us after its short idle timeout). older servers say
+        // "Unknown command.", which nothing shows either
+        out.println(Frame.PONG);
+    }
+
+    public class ResumeHandshakeProvider implements HandshakeProvider {
+        // logs back in after a drop: answers "resume" and the token, and hands
+        // everything else to the provider the user logged in with the first time.
+        // if the token isn't taken the server asks login/register again
+        private final String token;
+        private final HandshakeProvider fallback;
+        private boolean resumeTried = false;
+        private boolean fellBack = false;
+
+        public ResumeHandshakeProvider(String token, HandshakeProvider fallback) {
+            this.token = token;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public String respond(String serverPrompt) throws Exception {
+            String p = serverPrompt.toLowerCase();
+
+            if (p.contains("host") && p.contains("password") && hostPassword != null) {
+                return hostPassword;
+            }
+            if (token != null && !resumeTried && p.contains("login") && p.contains("register")) {
+                resumeTried = true;
+                return "resume";
+            }
+            if (p.contains("resume token")) {
+                return token;
+            }
+            if (p.startsWith("resume failed")) {
+                return fallback.respond("Type 'login' or 'register':");
+            }
+            // servers without resuming turn "resume" down without asking again
+            if (resumeTried && !fellBack && p.equals("invalid option.")) {
+                fellBack = true;
+                return fallback.respond("Type 'login' or 'register':");
+            }
+            return fallback.respond(serverPrompt);
+        }
+    }
+
+    private boolean reconnect() {
+        // reader thread, after the connection dropped: connect again and log
+        // back in, with the resume token if we have one (no password check on
+        // the server) or the saved credentials. waits are random between 0 and
+        // an exponentially growing cap, so clients dropped together by a server
+        // restart don't all come back in the same instant
+        // output: true once logged in again
+        if (quitting || address == null || (resumeToken == null && entry == null)) return false;
+
+        if (chatWindow != null) chatWindow.append("Connection lost, reconnecting...");
+        try { socket.close(); } catch (Exception ignored) {}
+
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            long cap = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << attempt);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+
+                HandshakeProvider fallback = entry != null
+                        ? new SavedHandshakeProvider(entry) : new DialogHandshakeProvider();
+                connect(address);
+                handleHandshake(new ResumeHandshakeProvider(resumeToken, fallback));
+                negotiateBinary();
+                negotiateCompression();
+                if (binary && cache == null) openCache(entry != null ? entry.name : address);
+                requestResumeToken();
+                announceHeartbeats();
+
+                if (!inRoom && roomBrowser != null) roomBrowser.requestRoomList();
+                if (chatWindow != null) chatWindow.append("Reconnected.");
+                return true;
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                System.out.println("[RECONNECT] attempt " + (attempt + 1) + " failed: " + e.getMessage());
+                try { if (socket != null) socket.close(); } catch (Exception ignored) {}
+                if ("Login cancelled.".equals(e.getMessage())) return false;
+            }
+        }
+        return false;
+    }
+
+    private void openCache(String chat) {
+        // local scrollback, keyed by the saved chat's name (or the address)
+        // text servers don't say which lines are chat or give ids, no cache there
+        if (binary) cache = new MessageCache(CACHE_DIR, chat);
+    }
+
+    private void enterRoom(String room) {
+        // reader thread: shows the chat window with the room's cached lines
+        // the server's replay behind JOINED then only holds newer lines
+        roomLog = null;
+        if (cache != null) {
+            try {
+                roomLog = cache.room(room);
+            } catch (IOException e) {
+                System.out.println("[CACHE] " + room + ": " + e.getMessage());
+            }
+        }
+        showChatWindow(room);
 
+        // rejoined after a reconnect, the window still shows these lines
+        if (roomLog == null || room.equals(shownRoom)) return;
+        shownRoom = room;
+        try {
+            for (String line : roomLog.tail(ChatWindow.DEFAULT_MAX_LINES)) appendChat(line);
+        } catch (IOException e) {
+            System.out.println("[CACHE] " + room + ": " + e.getMessage());
         }
     }
 
+    private void cacheLine(long id, String line) {
+        // reader thread: remembers a chat line of the current room
+        if (roomLog == null) return;
+        try {
+            roomLog.append(id, line);
+        } catch (IOException e) {
+            System.out.println("[CACHE] " + e.getMessage());
+            roomLog = null;
+        }
+    }
 
     /* ===================== WINDOWS ===================== */
 
     private void showRoomBrowser() {
         // show the room browser window
-        SwingUtilities.invokeLater(() -> {
+        postUi((Runnable) () -> {
             inRoom = false;
 
             if (chatWindow != null) {
@@ -183,7 +432,7 @@ public class ChatClient {
                 chatWindow = null;
             }
 
-            roomBrowser = new RoomBrowserWindow(out, chatName, address);
+            roomBrowser = new RoomBrowserWindow(out, chatName, address, cache);
             roomBrowser.show();
         });
     }
@@ -191,7 +440,7 @@ public class ChatClient {
     private void showChatWindow(String room) {
         // show the chat window for the given room
         // input: room name
-        SwingUtilities.invokeLater(() -> {
+        postUi((Runnable) () -> {
             inRoom = true;
 
             if (roomBrowser != null) {
@@ -216,7 +465,13 @@ public class ChatClient {
         connect(entry.address);
 
         // server prompt handler s
+        this.entry = entry;
         handleHandshake(new SavedHandshakeProvider(entry));
+        negotiateBinary();
+        negotiateCompression();
+        openCache(entry.name);
+        requestResumeToken();
+        announceHeartbeats();
 
 
         showRoomBrowser();
@@ -227,38 +482,135 @@ public class ChatClient {
         // starts a background thread to read messages from the server
         new Thread(() -> {
             try {
-                String msg;
-                while ((msg = in.readLine()) != null) {
-
-                    // Joined room
-                    if (msg.startsWith("Joined room: ")) {
-                        showChatWindow(msg.substring(13).trim());
-                        continue;
+                do {
+                    try {
+                        readAll();
+                    } catch (IOException ignored) {
+                        // dropped, reconnect() decides what happens next
                     }
+                } while (reconnect());
 
-                    // Left room
-                    if (msg.equalsIgnoreCase("You left the room.")) {
-                        showRoomBrowser();
-                        continue;
-                    }
-
-                    // Room list updates
-                    if (!inRoom && roomBrowser != null && msg.startsWith(" - ")) {
-                        roomBrowser.updateRoom(msg.substring(3));
-                        continue;
-                    }
-
-                    // Chat messages
-                    if (inRoom && chatWindow != null) {
-                        chatWindow.append(msg);
-                    }
-                }
-            } catch (IOException e) {
                 if (chatWindow != null)
                     chatWindow.append("Disconnected from server.");
+            } finally {
+                if (cache != null) cache.close();
             }
         }, "Chat-Reader").start();
     }
+
+    private void readAll() throws IOException {
+        // everything the server sends until the connection ends
+        if (binary) {
+            Frame frame;
+            while ((frame = in.readFrame()) != null) {
+                handleFrame(frame);
+            }
+        } else {
+            String msg;
+            while ((msg = in.readLine()) != null) {
+                handleLine(msg);
+            }
+        }
+    }
+    private void handleLine(String msg) {
+        // one line from a text protocol server, recognised by its wording
+
+        if (msg.startsWith("Resume token: ")) {
+            resumeToken = msg.substring("Resume token: ".length());
+            return;
+        }
+        if (msg.equals("Disconnecting from server...")) quitting = true;
+        if (msg.equals(Frame.PING_TEXT)) {
+            out.println(Frame.PONG);
+            return;
+        }
+
+        // Joined room
+        if (msg.startsWith("Joined room: ")) {
+            showChatWindow(msg.substring(13).trim());
+            return;
+        }
+
+        // Left room
+        if (msg.equalsIgnoreCase("You left the room.")) {
+            showRoomBrowser();
+            return;
+        }
+
+        // Room list updates
+        if (!inRoom && roomBrowser != null && msg.startsWith(" - ")) {
+            roomBrowser.updateRoom(msg.substring(3));
+            return;
+        }
+
+        appendChat(msg);
+    }
+
+    private void handleFrame(Frame frame) {
+        // one frame from a binary protocol server, recognised by its type
+        switch (frame.type) {
+            case Frame.JOINED -> enterRoom(frame.payload);
+            case Frame.LEFT -> {
+                roomLog = null;
+                shownRoom = null;
+                showRoomBrowser();
+            }
+            case Frame.RESUME -> resumeToken = frame.payload;
+            case Frame.PING -> out.println(Frame.PONG);
+            case Frame.STORED -> {
+                int space = frame.payload.indexOf(' ');
+                long id = Long.parseLong(frame.payload.substring(0, space));
+                String line = frame.payload.substring(space + 1);
+                if (roomLog != null && id <= roomLog.lastId()) return; // already cached and shown
+                cacheLine(id, line);
+                appendChat(line);
+            }
+            case Frame.CHAT -> {
+                cacheLine(0, frame.payload);
+                appendChat(frame.payload);
+            }
+            case Frame.WHISPER -> appendChat(frame.payload); // private, never cached with the room
+            case Frame.ROOM_LIST -> {
+                if (!inRoom && roomBrowser != null) roomBrowser.updateRoom(frame.payload);
+            }
+            default -> {
+                if (frame.payload.equals("Disconnecting from server...")) quitting = true;
+                appendChat(frame.payload); // EVENT, SYSTEM
+            }
+        }
+    }
+
+    private void appendChat(String line) {
+        // Chat messages
+        // checked on the EDT, behind showChatWindow, so the history
+        // replay right after "Joined room:" isn't dropped
+        postUi(line);
+    }
+
+    private void postUi(Object item) {
+        // hands a window switch (Runnable) or chat line (String) to the EDT
+        // everything goes through one queue so lines stay behind the switch
+        // before them, and a burst of lines costs one EDT task instead of one each
+        uiQueue.add(item);
+        if (uiScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drainUi);
+        }
+    }
+
+    private void drainUi() {
+        // EDT: works through the queue in order
+        uiScheduled.set(false);
+
+        Object item;
+        while ((item = uiQueue.poll()) != null) {
+            if (item instanceof Runnable r) {
+                r.run();
+            } else if (inRoom && chatWindow != null) {
+                chatWindow.append((String) item); // batched again inside the window
+            }
+        }
+    }
+
     // TESTS
     private static boolean testHandshake() {
         System.out.print("[TEST] HandshakeProvider basic flow ... ");
@@ -272,9 +624,7 @@ public class ChatClient {
                     "Password:\n" +
                     "OK: Logged injtestUser\n";
 
-            client.in = new BufferedReader(new InputStreamReader(
-                    new java.io.ByteArrayInputStream(serverScript.getBytes())
-            ));
+            client.in = new FrameReader(new java.io.ByteArrayInputStream(serverScript.getBytes()));
             client.out = new PrintWriter(new java.io.StringWriter(), true);
 
             HandshakeProvider provider = prompt -> {
@@ -332,7 +682,7 @@ private static boolean testSavedHandshakeProvider() {
         ChatManagerWindow.ChatEntry entry =
                 new ChatManagerWindow.ChatEntry("entryname", "addr", "hostpass", "user", "pass");
 
-        SavedHandshakeProvider p = client.new SavedHandshakeProvider(entry);
+        SavedHandshakeProvider p = new SavedHandshakeProvider(entry);
 
         if (!"login".equals(p.respond("Login or Register?")))
             throw new AssertionError("Expected login");
@@ -388,9 +738,7 @@ private static boolean testReaderThreadLogic() {
                 "Hello\n" +
                 "You left the room.\n";
 
-        client.in = new BufferedReader(new InputStreamReader(
-                new java.io.ByteArrayInputStream(serverData.getBytes())
-        ));
+        client.in = new FrameReader(new java.io.ByteArrayInputStream(serverData.getBytes()));
         client.out = new PrintWriter(System.out, true);
 
         client.startReaderThread();
@@ -405,6 +753,236 @@ private static boolean testReaderThreadLogic() {
         return false;
     }
 }
+private static boolean testNegotiateBinary() {
+    System.out.print("[TEST] negotiateBinary() ... ");
+
+    try {
+        ChatClient client = new ChatClient();
+
+        java.io.ByteArrayOutputStream server = new java.io.ByteArrayOutputStream();
+        server.write("someone joined the chat.\nOK: binary\n".getBytes());
+        server.write(Frame.encodeBytes(Frame.JOINED, "Room1"));
+
+        java.io.ByteArrayOutputStream sent = new java.io.ByteArrayOutputStream();
+        client.in = new FrameReader(new java.io.ByteArrayInputStream(server.toByteArray()));
+        client.frames = new FrameWriter(sent);
+        client.out = new PrintWriter(client.frames, true);
+
+        client.negotiateBinary();
+
+        if (!client.binary || !client.frames.isFraming())
+            throw new AssertionError("Client did not switch to frames");
+        if (!sent.toString().equals(Frame.NEGOTIATE + "\n"))
+            throw new AssertionError("Negotiation not sent as text: " + sent);
+
+        Frame joined = client.in.readFrame();
+        if (joined.type != Frame.JOINED || !"Room1".equals(joined.payload))
+            throw new AssertionError("Frame after negotiation misread: " + joined);
+
+        client.out.println("/leave");
+        byte[] expected = Frame.encodeBytes(Frame.INPUT, "/leave");
+        byte[] all = sent.toByteArray();
+        byte[] tail = java.util.Arrays.copyOfRange(all, all.length - expected.length, all.length);
+        if (!java.util.Arrays.equals(expected, tail))
+            throw new AssertionError("Input not sent as a frame");
+
+        System.out.println("PASS");
+        return true;
+
+    } catch (Throwable t) {
+        System.out.println("FAIL");
+        t.printStackTrace();
+        return false;
+    }
+}
+private static boolean testNegotiateCompression() {
+    System.out.print("[TEST] negotiateCompression() ... ");
+
+    try {
+        ChatClient client = new ChatClient();
+
+        // what the server sends: answer as a plain frame, then a deflated, sync-flushed frame
+        java.io.ByteArrayOutputStream server = new java.io.ByteArrayOutputStream();
+        server.write(Frame.encodeBytes(Frame.EVENT, "someone joined the chat."));
+        server.write(Frame.encodeBytes(Frame.SYSTEM, Frame.COMPRESS_ACCEPTED));
+        java.util.zip.Deflater deflater = new java.util.zip.Deflater(1);
+        deflater.setInput(Frame.encodeBytes(Frame.JOINED, "Room1"));
+        byte[] buf = new byte[256];
+        server.write(buf, 0, deflater.deflate(buf, 0, buf.length, java.util.zip.Deflater.SYNC_FLUSH));
+
+        java.io.ByteArrayOutputStream sent = new java.io.ByteArrayOutputStream();
+        client.rawIn = new BufferedInputStream(new java.io.ByteArrayInputStream(server.toByteArray()));
+        client.in = new FrameReader(client.rawIn);
+        client.frames = new FrameWriter(sent);
+        client.frames.useFrames();
+        client.out = new PrintWriter(client.frames, true);
+        client.binary = true;
+
+        client.negotiateCompression();
+
+        if (!java.util.Arrays.equals(sent.toByteArray(), Frame.encodeBytes(Frame.INPUT, Frame.COMPRESS)))
+            throw new AssertionError("Negotiation not sent: " + sent);
+
+        Frame joined = client.in.readFrame();
+        if (joined == null || joined.type != Frame.JOINED || !"Room1".equals(joined.payload))
+            throw new AssertionError("Frame after negotiation misread: " + joined);
+
+        System.out.println("PASS");
+        return true;
+
+    } catch (Throwable t) {
+        System.out.println("FAIL");
+        t.printStackTrace();
+        return false;
+    }
+}
+private static boolean testCachedScrollback() {
+    System.out.print("[TEST] cached scrollback ... ");
+
+    try {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("e2ec-cache");
+
+        // first visit: two saved lines, one from a room without history and a whisper
+        ChatClient client = new ChatClient();
+        client.cache = new MessageCache(dir, "Saved Chat");
+        client.handleFrame(new Frame(Frame.JOINED, "Room1"));
+        client.handleFrame(new Frame(Frame.STORED, "7 <User>a: hi"));
+        client.handleFrame(new Frame(Frame.STORED, "8 <User>b: hello"));
+        client.handleFrame(new Frame(Frame.CHAT, "<User>a: unsaved"));
+        client.handleFrame(new Frame(Frame.WHISPER, "[From a]: psst"));
+        client.cache.close();
+
+        // next connection: the cache has it all, replayed lines we already have are skipped
+        ChatClient again = new ChatClient();
+        again.cache = new MessageCache(dir, "Saved Chat");
+        MessageCache.RoomLog log = again.cache.room("Room1");
+        if (log.lastId() != 8)
+            throw new AssertionError("Last id not found: " + log.lastId());
+
+        again.handleFrame(new Frame(Frame.JOINED, "Room1"));
+        again.handleFrame(new Frame(Frame.STORED, "8 <User>b: hello"));
+        again.handleFrame(new Frame(Frame.STORED, "9 <User>c: new"));
+
+        java.util.List<String> lines = log.tail(10);
+        java.util.List<String> expected = java.util.List.of(
+                "<User>a: hi", "<User>b: hello", "<User>a: unsaved", "<User>c: new");
+        if (!lines.equals(expected))
+            throw new AssertionError("Cache holds " + lines);
+        if (log.lastId() != 9)
+            throw new AssertionError("Last id not advanced");
+
+        again.cache.close();
+        System.out.println("PASS");
+        return true;
+
+    } catch (Throwable t) {
+        System.out.println("FAIL");
+        t.printStackTrace();
+        return false;
+    }
+}
+private static boolean testResumeHandshakeProvider() {
+    System.out.print("[TEST] ResumeHandshakeProvider ... ");
+
+    try {
+        ChatClient client = new ChatClient();
+        client.hostPassword = "hostpw";
+        ChatManagerWindow.ChatEntry entry =
+                new ChatManagerWindow.ChatEntry("Test", "localhost:5000", "hostpw", "alice", "pw");
+
+        HandshakeProvider resume = client.new ResumeHandshakeProvider("tok.sig", new SavedHandshakeProvider(entry));
+        if (!"hostpw".equals(resume.respond("Enter host password to connect:")))
+            throw new AssertionError("Host password not reused");
+        if (!"resume".equals(resume.respond("Welcome! Type 'login' or 'register':")))
+            throw new AssertionError("Did not ask to resume");
+        if (!"tok.sig".equals(resume.respond("Enter resume token:")))
+            throw new AssertionError("Token not sent");
+
+        // token turned down: log in with the saved credentials instead
+        if (!"login".equals(resume.respond("Resume failed. Type 'login' or 'register':")))
+            throw new AssertionError("No fallback to login");
+        if (!"alice".equals(resume.respond("Enter username:")))
+            throw new AssertionError("Fallback lost the username");
+
+        // older server without resuming
+        HandshakeProvider old = client.new ResumeHandshakeProvider("tok.sig", new SavedHandshakeProvider(entry));
+        old.respond("Welcome! Type 'login' or 'register':");
+        if (!"login".equals(old.respond("Invalid option.")))
+            throw new AssertionError("No fallback on an older server");
+
+        System.out.println("PASS");
+        return true;
+
+    } catch (Throwable t) {
+        System.out.println("FAIL");
+        t.printStackTrace();
+        return false;
+    }
+}
+private static boolean testMessageCacheRotation() {
+    System.out.print("[TEST] message cache rotation and torn record ... ");
+
+    try {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("e2ec-cache");
+
+        // ~60KB lines, 17 to a segment, enough for a few segments past MAX_SEGMENTS
+        String filler = "x".repeat(60 * 1024);
+        int total = (MessageCache.MAX_SEGMENTS + 3) * 17;
+        MessageCache cache = new MessageCache(dir, "Saved Chat");
+        MessageCache.RoomLog log = cache.room("Room1");
+        for (int i = 1; i <= total; i++) {
+            log.append(i, i + " " + filler);
+        }
+        log.append(total + 1, "torn line");
+        cache.close();
+
+        java.nio.file.Path roomDir = dir.resolve(MessageCache.fileName("Saved Chat")).resolve(MessageCache.fileName("Room1"));
+        java.util.List<java.nio.file.Path> segs;
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(roomDir)) {
+            segs = files.sorted().toList();
+        }
+        if (segs.size() != MessageCache.MAX_SEGMENTS)
+            throw new AssertionError(segs.size() + " segments on disk");
+
+        // tear the last record: its length now runs past the end of the file
+        java.nio.file.Path newest = segs.get(segs.size() - 1);
+        byte[] bytes = java.nio.file.Files.readAllBytes(newest);
+        byte[] torn = "torn line".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int at = -1;
+        for (int i = 0; i + torn.length <= bytes.length && at < 0; i++) {
+            if (java.util.Arrays.equals(bytes, i, i + torn.length, torn, 0, torn.length)) at = i;
+        }
+        if (at < 0) throw new AssertionError("last record not found");
+        java.nio.ByteBuffer.wrap(bytes).putInt(at - 4, Integer.MAX_VALUE);
+        java.nio.file.Files.write(newest, bytes);
+
+        // reopened: the torn record is gone, the next line takes its place
+        MessageCache again = new MessageCache(dir, "Saved Chat");
+        MessageCache.RoomLog reopened = again.room("Room1");
+        if (reopened.lastId() != total)
+            throw new AssertionError("Last id " + reopened.lastId());
+        reopened.append(total + 2, "after");
+
+        java.util.List<String> lines = reopened.tail(3);
+        if (lines.size() != 3 || !lines.get(0).startsWith((total - 1) + " ")
+                || !lines.get(1).startsWith(total + " ") || !lines.get(2).equals("after"))
+            throw new AssertionError("Tail is " + lines.stream().map(l -> l.substring(0, Math.min(8, l.length()))).toList());
+
+        // the oldest lines went with their segments
+        java.util.List<String> all = reopened.tail(total);
+        if (all.size() >= total || all.get(0).startsWith("1 "))
+            throw new AssertionError("Oldest segments still read, " + all.size() + " lines");
+        again.close();
+
+        System.out.println("PASS");
+        return true;
+
+    } catch (Throwable t) {
+        System.out.println("FAIL");
+        t.printStackTrace();
+        return false;
+    }
+}
 public static void runAllTests() {
     System.out.println("ChatClient tests");
 
@@ -416,6 +994,11 @@ public static void runAllTests() {
     if (testShowRoomBrowser()) passed++; else failed++;
     if (testShowChatWindow()) passed++; else failed++;
     if (testReaderThreadLogic()) passed++; else failed++;
+    if (testNegotiateBinary()) passed++; else failed++;
+    if (testNegotiateCompression()) passed++; else failed++;
+    if (testCachedScrollback()) passed++; else failed++;
+    if (testMessageCacheRotation()) passed++; else failed++;
+    if (testResumeHandshakeProvider()) passed++; else failed++;
 
     System.out.println();
     System.out.println("test summary");
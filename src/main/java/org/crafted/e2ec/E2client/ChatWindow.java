@@ -1,25 +1,45 @@
 package org.crafted.e2ec.E2client;
 
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.AbstractListModel;
 import javax.swing.BoxLayout;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
+import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 
 public class ChatWindow {
 
-    private final JTextArea chatArea = new JTextArea();
+    // lines kept in the transcript, older ones fall off the top
+    // can be changed with -De2ec.transcript.lines=N
+    static final int DEFAULT_MAX_LINES = Integer.getInteger("e2ec.transcript.lines", 5000);
+
+    private final TranscriptModel transcript;
+    private final JList<String> chatList;
     private final JTextField inputField = new JTextField();
+
+    // messages from the reader thread, added on the EDT in one go
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean appendScheduled = new AtomicBoolean(false);
+
     private final PrintWriter out;
 
     private JFrame frame;
@@ -32,9 +52,16 @@ public class ChatWindow {
     private final String connectionInfo;
 
     public ChatWindow(PrintWriter out, String chatName, String connectionInfo) {
+        this(out, chatName, connectionInfo, DEFAULT_MAX_LINES);
+    }
+
+    public ChatWindow(PrintWriter out, String chatName, String connectionInfo, int maxLines) {
+        // input: maxLines = how many lines the transcript keeps
         this.out = out;
         this.chatName = chatName;
         this.connectionInfo = connectionInfo;
+        this.transcript = new TranscriptModel(maxLines);
+        this.chatList = new JList<>(transcript);
     }
 
 
@@ -64,11 +91,25 @@ public class ChatWindow {
 
 
         /* ---------- CHAT ---------- */
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
+        // one row per line with a fixed height, so the list never measures
+        // rows and only paints the ones on screen. long lines are cut off,
+        // the tooltip shows them whole (and ctrl+c copies selected lines)
+        chatList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        chatList.setFixedCellHeight(chatList.getFontMetrics(chatList.getFont()).getHeight() + 2);
+        chatList.setFixedCellWidth(1); // fills the viewport width, see JList.getScrollableTracksViewportWidth
+        chatList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                JComponent c = (JComponent) super.getListCellRendererComponent(list, value, index,
+                        isSelected, cellHasFocus);
+                c.setToolTipText(String.valueOf(value));
+                return c;
+            }
+        });
 
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        JScrollPane scrollPane = new JScrollPane(chatList);
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 
         /* ---------- INPUT ---------- */
         JButton sendButton = new JButton("Send");
@@ -118,11 +159,81 @@ public class ChatWindow {
     }
 
     public void append(String msg) {
-        // appends a message to the chat area
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append(msg + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        // appends a message to the chat transcript, from any thread
+        // only the first message of a burst schedules an EDT task, which then
+        // adds everything that came in meanwhile with one model event
+        pending.add(msg);
+        if (appendScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::appendPending);
+        }
+    }
+
+    private void appendPending() {
+        // EDT: moves the queued messages into the transcript
+        appendScheduled.set(false);
+
+        List<String> batch = new ArrayList<>();
+        String msg;
+        while ((msg = pending.poll()) != null) batch.add(msg);
+        if (batch.isEmpty()) return;
+
+        // only follow new lines if the user hasn't scrolled up to read something
+        JScrollBar bar = scrollBar();
+        boolean atBottom = bar == null || bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+
+        transcript.addAll(batch);
+        if (atBottom) chatList.ensureIndexIsVisible(transcript.getSize() - 1);
+    }
+
+    private JScrollBar scrollBar() {
+        JScrollPane pane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, chatList);
+        return pane == null ? null : pane.getVerticalScrollBar();
+    }
+
+    @SuppressWarnings("serial") // Swing models are serializable, this one is never serialized
+    static class TranscriptModel extends AbstractListModel<String> {
+        // the last maxLines chat lines in a ring buffer
+        // adding to a full transcript overwrites the oldest line, nothing is copied
+
+        private final String[] lines;
+        private int head = 0;  // index of the oldest line in lines
+        private int size = 0;
+
+        TranscriptModel(int maxLines) {
+            lines = new String[Math.max(1, maxLines)];
+        }
+
+        void addAll(List<String> batch) {
+            // EDT only
+            // input : new lines, oldest first
+            // output: none (fires at most one removed and one added event)
+            int cap = lines.length;
+            int skip = Math.max(0, batch.size() - cap); // a batch bigger than the buffer only keeps its tail
+            int adding = batch.size() - skip;
+            int dropping = Math.max(0, size + adding - cap);
+
+            if (dropping > 0) {
+                head = (head + dropping) % cap;
+                size -= dropping;
+                fireIntervalRemoved(this, 0, dropping - 1);
+            }
+
+            for (int i = skip; i < batch.size(); i++) {
+                lines[(head + size) % cap] = batch.get(i);
+                size++;
+            }
+            if (adding > 0) fireIntervalAdded(this, size - adding, size - 1);
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines[(head + index) % lines.length];
+        }
     }
     //tests
     public static void runAllTests() {
@@ -135,6 +246,8 @@ public class ChatWindow {
         if (testSetRoom()) passed++; else failed++;
         if (testClearRoom()) passed++; else failed++;
         if (testAppendMessage()) passed++; else failed++;
+        if (testTranscriptCap()) passed++; else failed++;
+        if (testTranscriptWraparound()) passed++; else failed++;
         if (testSendAction()) passed++; else failed++;
         if (testCloseWindow()) passed++; else failed++;
 
@@ -241,13 +354,101 @@ public class ChatWindow {
 
             SwingUtilities.invokeAndWait(() -> {});
 
-            String text = window.chatArea.getText();
-
-            if (!text.contains("Hello\n"))
+            if (window.transcript.getSize() != 2 || !"Hello".equals(window.transcript.getElementAt(0)))
                 throw new AssertionError("Missing message");
 
-            if (!text.endsWith("World\n"))
-                throw new AssertionError("Caret not moved");
+            if (!"World".equals(window.transcript.getElementAt(1)))
+                throw new AssertionError("Messages out of order");
+
+            if (window.chatList.getLastVisibleIndex() != 1)
+                throw new AssertionError("Not scrolled to the newest message");
+
+            System.out.println("PASS");
+            return true;
+
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testTranscriptCap() {
+        System.out.print("[TEST] transcript keeps the last lines ... ");
+
+        try {
+            ChatWindow window = new ChatWindow(
+                    new PrintWriter(System.out, true),
+                    "Tester",
+                    "localhost",
+                    3
+            );
+
+            for (int i = 1; i <= 5; i++) window.append("line " + i);
+            SwingUtilities.invokeAndWait(() -> {});
+            window.append("line 6");
+            SwingUtilities.invokeAndWait(() -> {});
+
+            if (window.transcript.getSize() != 3)
+                throw new AssertionError("Transcript not capped");
+
+            if (!"line 4".equals(window.transcript.getElementAt(0))
+                    || !"line 6".equals(window.transcript.getElementAt(2)))
+                throw new AssertionError("Wrong lines kept");
+
+            System.out.println("PASS");
+            return true;
+
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
+    private static boolean testTranscriptWraparound() {
+        System.out.print("[TEST] transcript ring buffer wraps and evicts oldest ... ");
+
+        // only the model, no window, so this one also runs headless
+        try {
+            TranscriptModel model = new TranscriptModel(3);
+            List<String> events = new ArrayList<>();
+            model.addListDataListener(new javax.swing.event.ListDataListener() {
+                @Override
+                public void intervalAdded(javax.swing.event.ListDataEvent e) {
+                    events.add("+" + e.getIndex0() + "-" + e.getIndex1());
+                }
+                @Override
+                public void intervalRemoved(javax.swing.event.ListDataEvent e) {
+                    events.add("-" + e.getIndex0() + "-" + e.getIndex1());
+                }
+                @Override
+                public void contentsChanged(javax.swing.event.ListDataEvent e) {
+                    events.add("~");
+                }
+            });
+
+            model.addAll(List.of("1", "2"));
+            model.addAll(List.of("3", "4"));
+            if (!events.equals(List.of("+0-1", "-0-0", "+1-2")))
+                throw new AssertionError("Events " + events);
+            if (model.getSize() != 3 || !"2".equals(model.getElementAt(0)) || !"4".equals(model.getElementAt(2)))
+                throw new AssertionError("Oldest line not evicted");
+
+            // a batch bigger than the buffer keeps its tail and evicts everything
+            events.clear();
+            model.addAll(List.of("5", "6", "7", "8", "9"));
+            if (!events.equals(List.of("-0-2", "+0-2")))
+                throw new AssertionError("Events " + events);
+            if (!"7".equals(model.getElementAt(0)) || !"9".equals(model.getElementAt(2)))
+                throw new AssertionError("Wrong tail kept from a big batch");
+
+            // go around the ring a few more times one line at a time
+            for (int i = 10; i <= 20; i++) model.addAll(List.of(String.valueOf(i)));
+            if (model.getSize() != 3)
+                throw new AssertionError("Size " + model.getSize());
+            for (int i = 0; i < 3; i++) {
+                if (!String.valueOf(18 + i).equals(model.getElementAt(i)))
+                    throw new AssertionError("Line " + i + " is " + model.getElementAt(i));
+            }
 
             System.out.println("PASS");
             return true;
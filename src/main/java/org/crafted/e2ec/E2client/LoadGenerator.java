@@ -0,0 +1,319 @@
+package org.crafted.e2ec.E2client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.crafted.e2ec.DedicatedServer.Metrics.Histogram;
+import org.crafted.e2ec.Protocol.FrameReader;
+
+public class LoadGenerator {
+// headless bots for capacity planning, no Swing anywhere
+// every bot is a real client on its own virtual thread: it connects, logs in
+// through the same handshake code as the GUI (SavedHandshakeProvider, so the
+// first run registers the bots), joins a room, then chats at a set rate and
+// now and then whispers another bot. chat lines carry their send time and
+// every bot that gets one records how long it took. all bots share this JVM,
+// so System.nanoTime is one clock for sender and receiver
+//
+// java -cp target/classes org.crafted.e2ec.E2client.LoadGenerator port=5000 bots=1000 rate=0.5
+// run the server with a low hash.iterations for this, or registering the bots is all you measure
+//
+// 10k sessions (the executor=virtual check): server.properties with transport=blocking,
+// executor=virtual, hash.iterations=1000, hash.queue=20000, then
+// java -Xmx2g -cp target/classes org.crafted.e2ec.E2client.LoadGenerator port=5000 bots=10000 rate=0.0005 whisper=0 ramp=900 duration=120
+// everyone's "joined the chat" goes to everyone, that's 50M lines, hence the long ramp and low rate
+
+    static final String MARKER = "LG";
+    static final long GRACE_MS = 2000; // after the run, time for lines still on the way
+
+    // settings, key=value on the command line like server.properties
+    static final class Options {
+        String host = "127.0.0.1";
+        int port = 5000;
+        String hostPassword = "secret123";
+        int bots = 100;
+        String[] rooms = {"general"};
+        double rate = 1.0;      // chat lines per second per bot
+        double whisper = 0.1;   // share of those sent as /msg to another bot
+        long durationSeconds = 30;
+        long rampSeconds = 10;  // bots are started evenly over this long
+        String prefix = "bot";
+        String password = "botpass";
+
+        static Options parse(String[] args) {
+            // input : key=value arguments
+            // output: options, defaults for anything not given
+            Map<String, String> kv = new HashMap<>();
+            for (String a : args) {
+                int eq = a.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("expected key=value, got " + a);
+                kv.put(a.substring(0, eq).trim(), a.substring(eq + 1).trim());
+            }
+
+            Options o = new Options();
+            o.host = kv.getOrDefault("host", o.host);
+            o.port = Integer.parseInt(kv.getOrDefault("port", String.valueOf(o.port)));
+            o.hostPassword = kv.getOrDefault("host.password", o.hostPassword);
+            o.bots = Integer.parseInt(kv.getOrDefault("bots", String.valueOf(o.bots)));
+            if (kv.containsKey("rooms")) o.rooms = kv.get("rooms").split(",");
+            o.rate = Double.parseDouble(kv.getOrDefault("rate", String.valueOf(o.rate)));
+            o.whisper = Double.parseDouble(kv.getOrDefault("whisper", String.valueOf(o.whisper)));
+            o.durationSeconds = Long.parseLong(kv.getOrDefault("duration", String.valueOf(o.durationSeconds)));
+            o.rampSeconds = Long.parseLong(kv.getOrDefault("ramp", String.valueOf(o.rampSeconds)));
+            o.prefix = kv.getOrDefault("prefix", o.prefix);
+            o.password = kv.getOrDefault("password", o.password);
+            return o;
+        }
+    }
+
+    private final Options options;
+    private final String run; // tells this run's lines apart from replayed history
+    private long startNanos;
+    private long chatEndNanos;
+
+    private final Histogram setup = new Histogram();   // connect -> joined, microseconds
+    private final Histogram latency = new Histogram(); // room line sent -> received, microseconds
+    private final Histogram whisperLatency = new Histogram();
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder whispersSent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder whispersReceived = new LongAdder();
+    private final LongAdder connectErrors = new LongAdder();
+    private final LongAdder loginErrors = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final AtomicReference<String> firstError = new AtomicReference<>();
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+        this.run = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("usage: LoadGenerator [host=127.0.0.1] [port=5000] [host.password=secret123] "
+                    + "[bots=100] [rooms=general,...] [rate=1.0] [whisper=0.1] [duration=30] [ramp=10] "
+                    + "[prefix=bot] [password=botpass]");
+            System.exit(2);
+            return;
+        }
+
+        LoadGenerator lg = new LoadGenerator(options);
+        lg.run();
+        System.exit(lg.connected.sum() == 0 ? 1 : 0);
+    }
+
+    public void run() throws InterruptedException {
+        // starts every bot, reports while they chat, prints the summary once they're done
+        startNanos = System.nanoTime();
+        long rampEnd = startNanos + TimeUnit.SECONDS.toNanos(options.rampSeconds);
+        chatEndNanos = rampEnd + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        System.out.println("Starting " + options.bots + " bots against " + options.host + ":" + options.port
+                + " (run " + run + ")");
+
+        List<Thread> threads = new ArrayList<>(options.bots);
+        for (int i = 0; i < options.bots; i++) {
+            int bot = i;
+            threads.add(Thread.ofVirtual().name("bot-" + i).start(() -> runBot(bot)));
+        }
+
+        // steady state is from the end of the ramp to the end of the run
+        sleepUntil(rampEnd);
+        long sentAtRampEnd = sent.sum() + whispersSent.sum();
+        long receivedAtRampEnd = received.sum() + whispersReceived.sum();
+        while (System.nanoTime() < chatEndNanos) {
+            sleepUntil(Math.min(chatEndNanos, System.nanoTime() + TimeUnit.SECONDS.toNanos(5)));
+            progress();
+        }
+        long sentSteady = sent.sum() + whispersSent.sum() - sentAtRampEnd;
+        long receivedSteady = received.sum() + whispersReceived.sum() - receivedAtRampEnd;
+
+        for (Thread t : threads) t.join();
+        report(sentSteady, receivedSteady);
+    }
+
+    private void runBot(int bot) {
+        // one bot from connect to /quit
+        String name = options.prefix + bot;
+        String room = options.rooms[bot % options.rooms.length];
+        long delay = options.bots <= 1 ? 0 : TimeUnit.SECONDS.toNanos(options.rampSeconds) * bot / options.bots;
+        sleepUntil(startNanos + delay);
+
+        long t0 = System.nanoTime();
+        Socket socket;
+        try {
+            socket = new Socket(options.host, options.port);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            fail(connectErrors, name, e);
+            return;
+        }
+
+        try (socket) {
+            FrameReader in = new FrameReader(new BufferedInputStream(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), true);
+
+            try {
+                ChatManagerWindow.ChatEntry entry = new ChatManagerWindow.ChatEntry(name,
+                        options.host + ":" + options.port, options.hostPassword, name, options.password);
+                ChatClient.handshake(in, out, new ChatClient.SavedHandshakeProvider(entry), false);
+                joinRoom(in, out, room);
+                out.println("/pong"); // we answer heartbeats, ping us
+            } catch (Exception e) {
+                fail(loginErrors, name, e);
+                return;
+            }
+            setup.recordSince(t0);
+            connected.increment();
+
+            Thread reader = Thread.ofVirtual().name(name + "-reader").start(() -> readLines(in, out, name));
+            chat(out, bot);
+
+            // everyone stays until the end, a bot that left early would be missed by the others' lines
+            sleepUntil(chatEndNanos + TimeUnit.MILLISECONDS.toNanos(GRACE_MS));
+            out.println("/quit");
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (Exception e) {
+            fail(drops, name, e);
+        }
+    }
+
+    private void joinRoom(FrameReader in, PrintWriter out, String room) throws IOException {
+        // joins and skips everything up to the answer (join notices from other bots)
+        out.println("/join " + room);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("Joined room: ")) return;
+            if (line.startsWith("You do not have permission") || line.equals("Room does not exist.")) {
+                throw new IOException("/join " + room + ": " + line);
+            }
+        }
+        throw new IOException("Disconnected while joining " + room + ".");
+    }
+
+    private void chat(PrintWriter out, int bot) {
+        // sends until the run is over, gaps drawn so lines arrive like a Poisson process
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long next = System.nanoTime();
+        while (true) {
+            next += (long) (-Math.log(1 - random.nextDouble()) / options.rate * 1_000_000_000L);
+            if (next >= chatEndNanos) return;
+            sleepUntil(next);
+
+            String stamp = MARKER + run + " " + System.nanoTime();
+            if (options.bots > 1 && random.nextDouble() < options.whisper) {
+                int other = (bot + 1 + random.nextInt(options.bots - 1)) % options.bots;
+                out.println("/msg " + options.prefix + other + " " + stamp);
+                whispersSent.increment();
+            } else {
+                out.println(stamp + " hello from " + options.prefix + bot);
+                sent.increment();
+            }
+            if (out.checkError()) return; // the reader sees the drop
+        }
+    }
+
+    private void readLines(FrameReader in, PrintWriter out, String name) {
+        // counts and times this run's lines, answers heartbeats
+        String tag = MARKER + run + " ";
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("PING")) {
+                    out.println("/pong");
+                    continue;
+                }
+
+                int at = line.indexOf(tag);
+                if (at < 0) continue;
+                int start = at + tag.length();
+                int end = line.indexOf(' ', start);
+                long sentAt;
+                try {
+                    sentAt = Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt);
+                if (line.startsWith("[From ")) {
+                    whispersReceived.increment();
+                    whisperLatency.record(micros);
+                } else if (!line.startsWith("[To ")) {
+                    received.increment();
+                    latency.record(micros);
+                }
+            }
+            if (System.nanoTime() < chatEndNanos) fail(drops, name, new IOException("server closed the connection"));
+        } catch (IOException e) {
+            if (System.nanoTime() < chatEndNanos) fail(drops, name, e);
+        }
+    }
+
+    private void fail(LongAdder counter, String name, Exception e) {
+        counter.increment();
+        firstError.compareAndSet(null, name + ": " + e.getMessage());
+    }
+
+    private void progress() {
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+        System.out.printf("[%3ds] bots %d/%d, sent %d, received %d, latency p99 %s, errors %d%n",
+                elapsed, connected.sum(), options.bots, sent.sum() + whispersSent.sum(),
+                received.sum() + whispersReceived.sum(), millis(latency.percentile(99)),
+                connectErrors.sum() + loginErrors.sum() + drops.sum());
+    }
+
+    private void report(long sentSteady, long receivedSteady) {
+        double steadySeconds = Math.max(1, options.durationSeconds);
+        System.out.println();
+        System.out.println("bots        " + connected.sum() + " of " + options.bots + " connected");
+        System.out.println("setup       " + percentiles(setup));
+        System.out.println("sent        " + sent.sum() + " room lines, " + whispersSent.sum() + " whispers");
+        System.out.println("received    " + received.sum() + " room lines, " + whispersReceived.sum() + " whispers");
+        System.out.printf("throughput  %.1f sent/s, %.1f received/s (after the ramp)%n",
+                sentSteady / steadySeconds, receivedSteady / steadySeconds);
+        System.out.println("latency     " + percentiles(latency));
+        System.out.println("whispers    " + percentiles(whisperLatency));
+        System.out.println("errors      connect " + connectErrors.sum() + ", login/join " + loginErrors.sum()
+                + ", dropped " + drops.sum());
+        if (firstError.get() != null) System.out.println("first error " + firstError.get());
+    }
+
+    private static String percentiles(Histogram h) {
+        if (h.count() == 0) return "-";
+        return "p50 " + millis(h.percentile(50)) + "  p90 " + millis(h.percentile(90))
+                + "  p99 " + millis(h.percentile(99)) + "  p99.9 " + millis(h.percentile(99.9))
+                + "  max " + millis(h.max()) + "  (n=" + h.count() + ")";
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2fms", micros / 1000.0);
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long wait = deadlineNanos - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
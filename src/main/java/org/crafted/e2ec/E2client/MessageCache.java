@@ -0,0 +1,222 @@
+package org.crafted.e2ec.E2client;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MessageCache {
+// chat lines this client has seen, on disk per saved chat and room, so a
+// rejoined room starts with its scrollback and only asks the server for newer lines
+// every room is a folder of append-only segment files that are memory-mapped:
+// appending is a copy into the mapping, loading scrollback is reading memory.
+// a record is [1][id: long][length: int][UTF-8 line], the first 0 byte ends a
+// segment's records (a fresh segment is all zeros). ids come from the server,
+// 0 for lines of rooms it doesn't save
+
+    static final int SEGMENT_BYTES = 1 << 20;
+    static final int MAX_SEGMENTS = 8; // per room, older segments are deleted (when the OS lets us)
+    private static final int RECORD_HEADER = 1 + 8 + 4;
+
+    private final Path dir;
+    private final Map<String, RoomLog> rooms = new HashMap<>();
+
+    public MessageCache(Path root, String chat) {
+        // input : folder holding all caches, name of the saved chat (or its address)
+        this.dir = root.resolve(fileName(chat));
+    }
+
+    static String fileName(String name) {
+        // any chat or room name as a safe file name
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+
+    public synchronized RoomLog room(String name) throws IOException {
+        // the log of one room, opened the first time it's asked for
+        // input : room name
+        // output: the room's log
+        RoomLog log = rooms.get(name);
+        if (log == null) {
+            log = new RoomLog(dir.resolve(fileName(name)));
+            rooms.put(name, log);
+        }
+        return log;
+    }
+
+    public synchronized void close() {
+        // writes every open mapping back to disk
+        for (RoomLog log : rooms.values()) log.close();
+        rooms.clear();
+    }
+
+    public static class RoomLog {
+
+        private final Path dir;
+        private final List<Path> segments = new ArrayList<>(); // oldest first
+        private final List<Path> stale = new ArrayList<>();    // rotated out, not deleted yet
+        private MappedByteBuffer tail;  // newest segment, positioned at its end
+        private long lastId = 0;
+
+        RoomLog(Path dir) throws IOException {
+            // opens the newest segment, or starts the first one
+            this.dir = dir;
+            Files.createDirectories(dir);
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+                for (Path p : files) segments.add(p);
+            }
+            Collections.sort(segments);
+
+            if (segments.isEmpty()) {
+                startSegment(0);
+                return;
+            }
+            // leftovers from a run that couldn't delete them
+            while (segments.size() > MAX_SEGMENTS) stale.add(segments.remove(0));
+            deleteStale();
+
+            tail = map(segments.get(segments.size() - 1), FileChannel.MapMode.READ_WRITE);
+            ByteBuffer scan = tail.duplicate();
+            while (nextRecord(scan, null)) { }
+            tail.position(scan.position());
+
+            // the newest id can sit in an older segment if the last one only has id-less lines
+            for (int i = segments.size() - 1; i >= 0 && lastId == 0; i--) {
+                ByteBuffer seg = i == segments.size() - 1 ? tail.duplicate().rewind()
+                        : map(segments.get(i), FileChannel.MapMode.READ_ONLY);
+                while (nextRecord(seg, null)) { }
+            }
+        }
+
+        public synchronized void append(long id, String line) throws IOException {
+            // adds one line to the end of the room's log
+            // input : id from the server (0 if none), the line as shown
+            // output: none
+            byte[] text = line.getBytes(StandardCharsets.UTF_8);
+            if (RECORD_HEADER + text.length + 1 > SEGMENT_BYTES) return; // can't happen, lines are capped at 64KB
+
+            if (tail.remaining() < RECORD_HEADER + text.length + 1) {
+                tail.force();
+                startSegment(segmentNumber(segments.get(segments.size() - 1)) + 1);
+            }
+
+            // marker byte last, a record cut short by a crash reads as the end
+            int start = tail.position();
+            tail.position(start + 1);
+            tail.putLong(id).putInt(text.length).put(text);
+            if (tail.hasRemaining()) tail.put(tail.position(), (byte) 0); // ends the records even over a torn one
+            tail.put(start, (byte) 1);
+            if (id > lastId) lastId = id;
+        }
+
+        public synchronized long lastId() {
+            // id of the newest server-saved line we have, 0 if none
+            return lastId;
+        }
+
+        public synchronized List<String> tail(int count) throws IOException {
+            // the newest lines, for scrollback
+            // input : max number of lines
+            // output: lines oldest to newest
+            ArrayDeque<String> result = new ArrayDeque<>();
+
+            for (int i = segments.size() - 1; i >= 0 && result.size() < count; i--) {
+                ByteBuffer seg = i == segments.size() - 1 ? tail.duplicate().rewind()
+                        : map(segments.get(i), FileChannel.MapMode.READ_ONLY);
+
+                List<String> lines = new ArrayList<>();
+                while (nextRecord(seg, lines)) { }
+
+                for (int j = lines.size() - 1; j >= 0 && result.size() < count; j--) {
+                    result.addFirst(lines.get(j));
+                }
+            }
+            return new ArrayList<>(result);
+        }
+
+        synchronized void close() {
+            if (tail != null) tail.force();
+            deleteStale();
+        }
+
+        private boolean nextRecord(ByteBuffer buf, List<String> lines) {
+            // reads the record at buf's position, a broken one counts as the end
+            // input : segment buffer, list to add the line to (null to skip text)
+            // output: false at the end of the records
+            if (buf.remaining() < RECORD_HEADER || buf.get(buf.position()) != 1) return false;
+
+            int start = buf.position();
+            buf.get();
+            long id = buf.getLong();
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                buf.position(start);
+                return false;
+            }
+
+            if (lines != null) {
+                byte[] text = new byte[length];
+                buf.get(text);
+                lines.add(new String(text, StandardCharsets.UTF_8));
+            } else {
+                buf.position(buf.position() + length);
+            }
+            if (id > lastId) lastId = id;
+            return true;
+        }
+
+        private void startSegment(int number) throws IOException {
+            Path p = dir.resolve(String.format("%08d.seg", number));
+            segments.add(p);
+            tail = map(p, FileChannel.MapMode.READ_WRITE);
+
+            while (segments.size() > MAX_SEGMENTS) stale.add(segments.remove(0));
+            deleteStale();
+        }
+
+        private void deleteStale() {
+            // best effort: Windows won't delete a file that is still mapped (say by an
+            // earlier tail() call, until the GC drops it), so whatever fails now is
+            // tried again on the next rotation, on close or on the next start.
+            // appending never fails over it
+            stale.removeIf(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+        }
+
+        private static int segmentNumber(Path segment) {
+            String name = segment.getFileName().toString();
+            return Integer.parseInt(name.substring(0, name.length() - ".seg".length()));
+        }
+
+        private static MappedByteBuffer map(Path p, FileChannel.MapMode mode) throws IOException {
+            // the mapping stays valid after the channel is closed
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                    return ch.map(mode, 0, ch.size());
+                }
+            }
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE)) {
+                return ch.map(mode, 0, SEGMENT_BYTES);
+            }
+        }
+    }
+}
@@ -2,13 +2,18 @@ package org.crafted.e2ec.E2client;
 
 import java.awt.BorderLayout;
 import java.awt.Font;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.AbstractListModel;
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -17,7 +22,6 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
-import javax.swing.Timer;
 
 public class RoomBrowserWindow {
 
@@ -26,16 +30,24 @@ public class RoomBrowserWindow {
     private final String serverAddr;
 
     private JFrame frame;
-    private DefaultListModel<String> listModel;
+    private final RoomListModel listModel = new RoomListModel();
     private JList<String> roomList;
 
-    private final Map<String, String> rooms = new HashMap<>();
-    private Timer refreshTimer; // Auto-refresh timer
+    // room lines from the reader thread, applied on the EDT in one go
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean applyScheduled = new AtomicBoolean(false);
+
+    private final MessageCache cache; // null without local scrollback
 
     public RoomBrowserWindow(PrintWriter out, String chatName, String serverAddr) {
+        this(out, chatName, serverAddr, null);
+    }
+
+    public RoomBrowserWindow(PrintWriter out, String chatName, String serverAddr, MessageCache cache) {
         this.out = out;
         this.chatName = chatName;
         this.serverAddr = serverAddr;
+        this.cache = cache;
     }
 
     public void show() {
@@ -76,7 +88,6 @@ public class RoomBrowserWindow {
 
 
         /* ---------- ROOM LIST ---------- */
-        listModel = new DefaultListModel<>();
         roomList = new JList<>(listModel);
         roomList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         JScrollPane scroll = new JScrollPane(roomList);
@@ -99,18 +110,8 @@ public class RoomBrowserWindow {
 
         frame.setVisible(true);
 
-        // Request initial room list
+        // Request initial room list, the server pushes changes after that
         requestRoomList();
-
-        // Start auto-refresh every 5 seconds
-        refreshTimer = new Timer(5000, e -> requestRoomList());
-        refreshTimer.start();
-
-        frame.addWindowListener(new java.awt.event.WindowAdapter() {
-            public void windowClosed(java.awt.event.WindowEvent e) {
-                if (refreshTimer != null) refreshTimer.stop();
-            }
-        });
     }
 
     private void joinSelected() {
@@ -119,43 +120,106 @@ public class RoomBrowserWindow {
 
         // Extract room name
         String roomName = selected.split(" ")[0];
-        out.println("/join " + roomName);
 
-        // Stop auto-refresh when joining a room
-        if (refreshTimer != null) refreshTimer.stop();
+        // with cached lines the server only needs to replay what came after them
+        long lastId = 0;
+        if (cache != null) {
+            try {
+                lastId = cache.room(roomName).lastId();
+            } catch (IOException ignored) {}
+        }
+        if (lastId > 0) out.println("/since " + lastId);
+        out.println("/join " + roomName); // also ends the server's room pushes
     }
 
     /** Add or update a room line dynamically :^) */
     public void updateRoom(String roomLine) {
-        SwingUtilities.invokeLater(() -> {
-            // Extract room name
-            String roomName = roomLine.split(" ")[0];
-
-            // Update map
-            rooms.put(roomName, roomLine);
-
-            // Refresh model without clearing selection
-            int selectedIndex = roomList.getSelectedIndex();
-            listModel.clear();
-            rooms.values().forEach(listModel::addElement);
-            if (selectedIndex >= 0 && selectedIndex < listModel.size()) {
-                roomList.setSelectedIndex(selectedIndex);
+        // called from the reader thread once per room line. lines are queued and
+        // only the first one of a burst schedules an EDT task, so a whole /rooms
+        // answer (or a round of pushed changes) lands in the list in one go
+        pending.add(roomLine);
+        if (applyScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::applyPending);
+        }
+    }
+
+    private void applyPending() {
+        // EDT: puts every queued line into the list, keeping the selected room selected
+        applyScheduled.set(false);
+
+        String selected = roomList == null ? null : roomList.getSelectedValue();
+        String selectedName = selected == null ? null : roomName(selected);
+
+        String line;
+        while ((line = pending.poll()) != null) {
+            listModel.put(roomName(line), line);
+        }
+
+        if (selectedName != null) {
+            int index = listModel.indexOf(selectedName);
+            if (index >= 0 && index != roomList.getSelectedIndex()) roomList.setSelectedIndex(index);
+        }
+    }
+
+    private static String roomName(String roomLine) {
+        return roomLine.split(" ")[0];
+    }
+
+    @SuppressWarnings("serial") // Swing models are serializable, this one is never serialized
+    static class RoomListModel extends AbstractListModel<String> {
+        // room lines keyed by room name, in the order rooms first showed up
+        // an update to a known room only repaints its own row
+
+        private final List<String> lines = new ArrayList<>();
+        private final Map<String, Integer> indexByName = new HashMap<>();
+
+        void put(String name, String line) {
+            // input : room name, its line as the server sent it
+            Integer index = indexByName.get(name);
+            if (index == null) {
+                index = lines.size();
+                lines.add(line);
+                indexByName.put(name, index);
+                fireIntervalAdded(this, index, index);
+            } else if (!lines.get(index).equals(line)) {
+                lines.set(index, line);
+                fireContentsChanged(this, index, index);
             }
-        });
+        }
+
+        int indexOf(String name) {
+            Integer index = indexByName.get(name);
+            return index == null ? -1 : index;
+        }
+
+        boolean contains(String line) {
+            return lines.contains(line);
+        }
+
+        int size() {
+            return lines.size();
+        }
+
+        @Override
+        public int getSize() {
+            return lines.size();
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines.get(index);
+        }
     }
 
     /** Close the window safely */
     public void close() {
-        SwingUtilities.invokeLater(() -> {
-            if (refreshTimer != null) refreshTimer.stop();
-            frame.dispose();
-        });
+        SwingUtilities.invokeLater(() -> frame.dispose());
     }
 
-    /** Ask the server for the current room list */
+    /** Ask the server for the current room list and to push changes to it */
     public void requestRoomList() {
         if (out != null) {
-            out.println("/rooms");
+            out.println("/rooms watch");
         }
     }
     //tests
@@ -168,6 +232,7 @@ public class RoomBrowserWindow {
         if (testShowWindow()) passed++; else failed++;
         if (testRequestRoomList()) passed++; else failed++;
         if (testUpdateRoom()) passed++; else failed++;
+        if (testUpdateRoomKeepsSelection()) passed++; else failed++;
         if (testJoinSelected()) passed++; else failed++;
         if (testCloseWindow()) passed++; else failed++;
 
@@ -180,8 +245,9 @@ public class RoomBrowserWindow {
         System.out.print("[TEST] show() initializes window ... ");
 
         try {
+            StringWriter writer = new StringWriter();
             RoomBrowserWindow window = new RoomBrowserWindow(
-                    new PrintWriter(System.out, true),
+                    new PrintWriter(writer, true),
                     "Tester",
                     "localhost:1234"
             );
@@ -194,8 +260,8 @@ public class RoomBrowserWindow {
             if (!window.frame.isVisible())
                 throw new AssertionError("Frame not visible");
 
-            if (window.refreshTimer == null || !window.refreshTimer.isRunning())
-                throw new AssertionError("Refresh timer not running");
+            if (!writer.toString().contains("/rooms watch"))
+                throw new AssertionError("Room updates not requested");
 
             System.out.println("PASS");
             return true;
@@ -217,8 +283,8 @@ public class RoomBrowserWindow {
 
             window.requestRoomList();
 
-            if (!writer.toString().contains("/rooms"))
-                throw new AssertionError("Did not send /rooms command");
+            if (!writer.toString().contains("/rooms watch"))
+                throw new AssertionError("Did not send /rooms watch command");
 
             System.out.println("PASS");
             return true;
@@ -264,6 +330,45 @@ public class RoomBrowserWindow {
             return false;
         }
     }
+    private static boolean testUpdateRoomKeepsSelection() {
+        System.out.print("[TEST] updateRoom() keeps rows and selection ... ");
+
+        try {
+            RoomBrowserWindow window = new RoomBrowserWindow(
+                    new PrintWriter(new StringWriter(), true),
+                    "Tester",
+                    "localhost"
+            );
+
+            SwingUtilities.invokeAndWait(window::show);
+
+            window.updateRoom("RoomA (1 users)");
+            window.updateRoom("RoomB (1 users)");
+            SwingUtilities.invokeAndWait(() -> window.roomList.setSelectedIndex(1));
+
+            window.updateRoom("RoomB (4 users)");
+            window.updateRoom("RoomA (2 users)");
+            window.updateRoom("RoomA (3 users)");
+            SwingUtilities.invokeAndWait(() -> {});
+
+            if (window.listModel.size() != 2)
+                throw new AssertionError("Rows added instead of updated");
+
+            if (!"RoomA (3 users)".equals(window.listModel.getElementAt(0)))
+                throw new AssertionError("RoomA not updated in place");
+
+            if (!"RoomB (4 users)".equals(window.roomList.getSelectedValue()))
+                throw new AssertionError("Selection lost");
+
+            System.out.println("PASS");
+            return true;
+
+        } catch (Throwable t) {
+            System.out.println("FAIL");
+            t.printStackTrace();
+            return false;
+        }
+    }
     private static boolean testJoinSelected() {
         System.out.print("[TEST] joinSelected() ... ");
 
@@ -288,9 +393,6 @@ public class RoomBrowserWindow {
             if (!writer.toString().contains("/join RoomA"))
                 throw new AssertionError("Join command not sent");
 
-            if (window.refreshTimer != null && window.refreshTimer.isRunning())
-                throw new AssertionError("Refresh timer not stopped");
-
             System.out.println("PASS");
             return true;
 
@@ -318,9 +420,6 @@ public class RoomBrowserWindow {
             if (window.frame.isDisplayable())
                 throw new AssertionError("Frame not disposed");
 
-            if (window.refreshTimer != null && window.refreshTimer.isRunning())
-                throw new AssertionError("Timer not stopped");
-
             System.out.println("PASS");
             return true;
 
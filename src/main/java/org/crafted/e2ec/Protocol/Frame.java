@@ -0,0 +1,69 @@
+package org.crafted.e2ec.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class Frame {
+// binary framing shared by the server and the client
+// a frame is [type: 1 byte][length: 4 bytes, big endian][payload: UTF-8]
+// the connection starts out as newline separated text, once logged in the
+// client may send NEGOTIATE, and after the server answers ACCEPTED (still as
+// text) both sides only speak frames
+// COMPRESS works the same way for compression: after COMPRESS_ACCEPTED
+// everything the server sends is one zlib (deflate) stream, sync-flushed
+// after every batch, on top of whatever format was in use
+
+    // server -> client
+    public static final byte CHAT = 1;       // chat line in our room (live or history replay)
+    public static final byte SYSTEM = 2;     // anything else the server says
+    public static final byte ROOM_LIST = 3;  // one room of a /rooms answer, without the " - "
+    public static final byte JOINED = 4;     // we joined a room, payload is its name
+    public static final byte LEFT = 5;       // we left our room
+    public static final byte EVENT = 6;      // someone joined/left the chat or a room
+    public static final byte STORED = 7;     // chat line the server saved, payload is "<id> <line>"
+    public static final byte RESUME = 8;     // resume token for logging back in after a drop
+    public static final byte PING = 9;       // are you still there? answer with PONG, no payload
+    public static final byte WHISPER = 10;   // private message to or from us, not part of any room
+
+    // client -> server
+    public static final byte INPUT = 16;     // a line the user typed, command or chat
+
+    public static final String NEGOTIATE = "/binary";
+    public static final String ACCEPTED = "OK: binary";
+    public static final String COMPRESS = "/compress";
+    public static final String COMPRESS_ACCEPTED = "OK: compress";
+    public static final String COMPRESS_DECLINED = "Compression disabled.";
+    public static final String PING_TEXT = "PING";  // PING for text clients
+    public static final String PONG = "/pong";
+
+    public static final int HEADER_BYTES = 5;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    public final byte type;
+    public final String payload;
+
+    public Frame(byte type, String payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public static ByteBuffer encode(byte type, String payload) {
+        // one frame ready for the wire
+        // input : frame type, payload text
+        // output: read-only buffer with header and payload
+        return ByteBuffer.wrap(encodeBytes(type, payload)).asReadOnlyBuffer();
+    }
+
+    public static byte[] encodeBytes(byte type, String payload) {
+        // same as encode, as a plain array for streams
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + text.length);
+        buf.put(type).putInt(text.length).put(text);
+        return buf.array();
+    }
+
+    @Override
+    public String toString() {
+        return "Frame[" + type + "] " + payload;
+    }
+}
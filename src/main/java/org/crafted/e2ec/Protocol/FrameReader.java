@@ -0,0 +1,59 @@
+package org.crafted.e2ec.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class FrameReader {
+// reads either text lines or frames off one byte stream
+// works on bytes (no Reader in between) so switching from lines to frames
+// halfway through the connection doesn't lose anything to read-ahead
+
+    private final InputStream in;
+
+    public FrameReader(InputStream in) {
+        // input : stream to read from, should be buffered
+        this.in = in;
+    }
+
+    public String readLine() throws IOException {
+        // next '\n' terminated line, '\r' before it is dropped
+        // output: the line, or null at end of stream
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+            if (line.size() > Frame.MAX_PAYLOAD) throw new IOException("line too long");
+        }
+
+        byte[] raw = line.toByteArray();
+        int len = raw.length;
+        if (len > 0 && raw[len - 1] == '\r') len--;
+        return new String(raw, 0, len, StandardCharsets.UTF_8);
+    }
+
+    public Frame readFrame() throws IOException {
+        // next frame
+        // output: the frame, or null at end of stream
+        int type = in.read();
+        if (type < 0) return null;
+
+        int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        if (length < 0 || length > Frame.MAX_PAYLOAD) throw new IOException("frame too large: " + length);
+
+        byte[] payload = in.readNBytes(length);
+        if (payload.length < length) throw new EOFException("stream ended inside a frame");
+        return new Frame((byte) type, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("stream ended inside a frame");
+        return b;
+    }
+}
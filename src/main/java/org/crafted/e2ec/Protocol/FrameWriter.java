@@ -0,0 +1,74 @@
+package org.crafted.e2ec.Protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+public class FrameWriter extends Writer {
+// Writer that sends each line either as text or as one INPUT frame
+// put a PrintWriter on top and println() keeps working after the switch,
+// nothing holding the PrintWriter needs to know which mode we're in
+
+    private OutputStream out;
+    private final StringBuilder line = new StringBuilder();
+    private volatile boolean framing = false;
+
+    public FrameWriter(OutputStream out) {
+        // input : stream to write to
+        this.out = out;
+    }
+
+    public void useFrames() {
+        // every line from now on goes out as a frame
+        framing = true;
+    }
+
+    public boolean isFraming() {
+        return framing;
+    }
+
+    public synchronized void reset(OutputStream out) {
+        // continue on a new connection, which starts out as text again
+        // input : the new connection's stream
+        this.out = out;
+        framing = false;
+        line.setLength(0);
+    }
+
+    @Override
+    public synchronized void write(char[] buf, int off, int len) throws IOException {
+        // collects characters, a complete line is written out as soon as its '\n' arrives
+        for (int i = off; i < off + len; i++) {
+            char c = buf[i];
+            if (c == '\n') {
+                writeLine();
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private void writeLine() throws IOException {
+        int len = line.length();
+        if (len > 0 && line.charAt(len - 1) == '\r') line.setLength(len - 1);
+        String text = line.toString();
+        line.setLength(0);
+
+        if (framing) {
+            out.write(Frame.encodeBytes(Frame.INPUT, text));
+        } else {
+            out.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}